@@ -0,0 +1,394 @@
+package net.gabor6505.imageorganizer;
+
+import net.gabor6505.imageorganizer.cache.FolderIndex;
+import net.gabor6505.imageorganizer.image.ExifReader;
+import net.gabor6505.imageorganizer.image.ImageMetadata;
+
+import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Fills a catalog with the images of its work folder in the background, streaming them in as the folder is enumerated,
+ * so the first image can be shown long before the whole folder is listed
+ * <br><br>
+ * Images are added in the order the file system returns them, and the catalog is sorted once the enumeration is finished
+ * <br>
+ * The attributes of every file are read once while enumerating, and sorting only uses the values stored in the catalog
+ * <br><br>
+ * If loading subfolders is enabled, the subfolders are walked in parallel by a fork/join pool up to the configured depth,
+ * and the images in them are added with the subfolder they are in, as if they had been moved there
+ * <br><br>
+ * If the folder was opened before, its images are read from its {@link FolderIndex},
+ * and only the folders that changed since then are listed again
+ */
+public class FolderLoader extends SwingWorker<int[], Integer> {
+
+    private final static int BATCH_SIZE = 256;
+    /**
+     * Walking folders mostly waits for the file system (especially on network shares), so more threads are used than there are cores
+     */
+    private final static int WALKER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    /**
+     * Saves the folder indexes one after another, so that saving the index of a folder that was just closed doesn't block the UI
+     */
+    private final static ExecutorService INDEX_WRITER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "FolderIndexWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ImageCatalog catalog;
+    private final Runnable imagesAdded;
+    private final Consumer<int[]> sorted;
+    private final AtomicInteger unpublishedCount = new AtomicInteger(0);
+
+    private final int depth = getLoadedDepth();
+    private final boolean indexEnabled = PreferenceManager.isFolderIndexEnabled();
+    private FolderIndex index = null;
+    /**
+     * The modification times of the loaded folders by their path relative to the work folder, read right before they were listed
+     */
+    private final Map<String, Long> folderTimes = new ConcurrentHashMap<>();
+    private final AtomicBoolean indexOutdated = new AtomicBoolean(false);
+
+    /**
+     * @param catalog The catalog to fill
+     * @param imagesAdded Called on the Event Dispatch Thread whenever new images were added to the catalog
+     * @param sorted Called on the Event Dispatch Thread with the ids of all images in sorted order once the enumeration is finished,
+     *               or with null if it failed
+     */
+    public FolderLoader(ImageCatalog catalog, Runnable imagesAdded, Consumer<int[]> sorted) {
+        this.catalog = catalog;
+        this.imagesAdded = imagesAdded;
+        this.sorted = sorted;
+    }
+
+    public static boolean isImageFile(String name) {
+        String lowerCaseName = name.toLowerCase();
+        return lowerCaseName.endsWith(".png") || lowerCaseName.endsWith(".jpg") || lowerCaseName.endsWith(".jpeg");
+    }
+
+    /**
+     * @return The number of subfolder levels below the work folder that images are loaded from, 0 if loading subfolders is disabled
+     */
+    public static int getLoadedDepth() {
+        return PreferenceManager.isLoadSubfoldersEnabled() ? PreferenceManager.getSubfolderDepth() : 0;
+    }
+
+    @Override
+    protected int[] doInBackground() throws IOException {
+        System.out.println("Loading image names...");
+        long startTime = System.currentTimeMillis();
+
+        if (indexEnabled) index = FolderIndex.load(catalog.getWorkFolder(), depth);
+        ForkJoinPool pool = new ForkJoinPool(WALKER_THREADS);
+        try {
+            pool.invoke(new FolderWalker(Paths.get(catalog.getWorkFolder()), "", depth));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdownNow();
+        }
+        if (isCancelled()) return null;
+        System.out.println("Found " + catalog.size() + " image(s) in " + (System.currentTimeMillis() - startTime) + " ms"
+                + (index != null ? " using the folder index" : ""));
+        if (indexEnabled && (index == null || indexOutdated.get())) FolderIndex.save(catalog, depth, folderTimes);
+
+        // The sort order setting is read only now, in case it was changed while the folder was being enumerated
+        ImageCatalog.SortKey sortKey = PreferenceManager.getSortKey();
+        if (sortKey == ImageCatalog.SortKey.CAPTURE_DATE) readMetadata(catalog, new int[0], this::isCancelled);
+        return catalog.getSortedOrder(sortKey);
+    }
+
+    /**
+     * Writes the current contents of the catalog into the index of the folder in the background, if the folder index is enabled
+     * Should only be called once the loading finished, and the catalog shouldn't be changed afterwards
+     *
+     * @param folderWatched True if the folder was watched since it was loaded, and the watcher has no pending or missed changes,
+     *                      so the catalog contains the current contents of the folders, and their current modification times can be stored,
+     *                      otherwise the times read when they were listed are stored, so the folders changed since then are listed again the next time
+     * @return The save in progress, which has to be waited for before the app exits
+     */
+    public CompletableFuture<Void> saveIndex(boolean folderWatched) {
+        if (!indexEnabled || !catalog.isComplete()) return CompletableFuture.completedFuture(null);
+        return CompletableFuture.runAsync(() -> writeIndex(folderWatched), INDEX_WRITER);
+    }
+
+    private void writeIndex(boolean folderWatched) {
+        Map<String, Long> savedFolderTimes = new HashMap<>(folderTimes);
+        // Images moved by the app can be in folders that didn't exist when the folder was loaded
+        for (int i = 0; i < catalog.size(); i++) {
+            String folder = catalog.getFolder(catalog.getId(i));
+            while (!savedFolderTimes.containsKey(folder) && getFolderDepth(folder) <= depth) {
+                savedFolderTimes.put(folder, 0L);
+                folder = folder.contains(File.separator) ? folder.substring(0, folder.lastIndexOf(File.separator)) : "";
+            }
+        }
+        if (folderWatched) {
+            for (Map.Entry<String, Long> entry : savedFolderTimes.entrySet()) {
+                entry.setValue(readModifiedTime(Paths.get(catalog.getWorkFolder(), entry.getKey())));
+            }
+        }
+        FolderIndex.save(catalog, depth, savedFolderTimes);
+    }
+
+    private static int getFolderDepth(String folder) {
+        if (folder.isEmpty()) return 0;
+        int depth = 1;
+        for (int i = 0; i < folder.length(); i++) {
+            if (folder.charAt(i) == File.separatorChar) depth++;
+        }
+        return depth;
+    }
+
+    private int addImage(String name, String folder, long size, long modifiedTime) {
+        int id = catalog.add(name, folder, size, modifiedTime);
+        // Publish the first image right away, so it can be shown while the rest of the folder is enumerated
+        if (unpublishedCount.incrementAndGet() >= BATCH_SIZE || id == 0) {
+            unpublishedCount.set(0);
+            publish(catalog.size());
+        }
+        return id;
+    }
+
+    private static long readModifiedTime(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            System.err.println("Error occurred while reading the attributes of " + path.getFileName() + "!");
+            return null;
+        }
+    }
+
+    /**
+     * Reads the metadata (dimensions, orientation and capture date) of the images in the catalog that don't have it yet from the headers of their files
+     * The files are read in parallel, and only their headers are read, which takes a fraction of the time of decoding them,
+     * but it still has to read from every file, so it should be called on a background thread
+     *
+     * @param catalog The catalog of the images
+     * @param firstIds The ids of the images that should be read before the rest (like the ones around the visible image)
+     * @param cancelled Checked before reading each image, the reading stops once it returns true
+     */
+    public static void readMetadata(ImageCatalog catalog, int[] firstIds, BooleanSupplier cancelled) {
+        long startTime = System.currentTimeMillis();
+        AtomicInteger readCount = new AtomicInteger(0);
+        ForkJoinPool pool = new ForkJoinPool(WALKER_THREADS);
+        try {
+            pool.invoke(new MetadataReader(catalog, firstIds, 0, firstIds.length, cancelled, readCount));
+            pool.invoke(new MetadataReader(catalog, null, 0, catalog.getIdCount(), cancelled, readCount));
+        } finally {
+            pool.shutdownNow();
+        }
+        if (readCount.get() > 0) {
+            System.out.println("Read the metadata of " + readCount.get() + " image(s) in " + (System.currentTimeMillis() - startTime) + " ms"
+                    + (cancelled.getAsBoolean() ? " before it was cancelled" : ""));
+        }
+    }
+
+    @Override
+    protected void process(List<Integer> chunks) {
+        imagesAdded.run();
+    }
+
+    @Override
+    protected void done() {
+        if (isCancelled()) return;
+
+        int[] order = null;
+        try {
+            order = get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Image loading failed: " + e.getCause());
+        }
+        catalog.setComplete();
+        sorted.accept(order);
+    }
+
+    /**
+     * Adds the images of a folder to the catalog, and walks its subfolders in parallel
+     * Fork/join tasks are serializable, but the walkers are never serialized
+     */
+    @SuppressWarnings("serial")
+    private class FolderWalker extends RecursiveAction {
+
+        private final Path path;
+        private final String folder;
+        private final int depth;
+
+        /**
+         * @param path The path of the folder
+         * @param folder The path of the folder relative to the work folder, or an empty string for the work folder itself
+         * @param depth The number of subfolder levels below this folder that should be walked
+         */
+        FolderWalker(Path path, String folder, int depth) {
+            this.path = path;
+            this.folder = folder;
+            this.depth = depth;
+        }
+
+        /**
+         * Inside a fork/join task isCancelled() would refer to the task itself, and forked tasks aren't interrupted by cancelling the loader,
+         * so the walkers check the loader directly to stop walking once another folder is selected
+         */
+        private boolean isLoadingCancelled() {
+            return FolderLoader.this.isCancelled();
+        }
+
+        @Override
+        protected void compute() {
+            if (isLoadingCancelled()) return;
+
+            // The modification time is read before listing, so changes made while the folder is listed are picked up the next time
+            long folderTime = readModifiedTime(path);
+            folderTimes.put(folder, folderTime);
+            FolderIndex.IndexedFolder indexedFolder = index != null ? index.getFolder(folder) : null;
+            if (indexedFolder != null && indexedFolder.getModifiedTime() == folderTime) {
+                addIndexedImages(indexedFolder);
+                return;
+            }
+            indexOutdated.set(true);
+
+            List<FolderWalker> subfolders = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path entry : stream) {
+                    if (isLoadingCancelled()) return;
+                    String name = entry.getFileName().toString();
+                    boolean imageFile = isImageFile(name);
+                    if (!imageFile && depth <= 0) continue;
+
+                    BasicFileAttributes attributes = readAttributes(entry);
+                    if (attributes == null) continue;
+
+                    if (imageFile && attributes.isRegularFile()) {
+                        addImage(name, folder, attributes.size(), attributes.lastModifiedTime().toMillis());
+                    } else if (attributes.isDirectory() && depth > 0 && !name.startsWith(".")) {
+                        String subfolder = folder.isEmpty() ? name : folder + File.separator + name;
+                        FolderWalker walker = new FolderWalker(entry, subfolder, depth - 1);
+                        walker.fork();
+                        subfolders.add(walker);
+                    }
+                }
+            } catch (IOException e) {
+                // Only failing to list the work folder itself fails the whole loading
+                if (folder.isEmpty()) throw new UncheckedIOException(e);
+                folderTimes.remove(folder);
+                System.err.println("Error occurred while listing the subfolder " + folder + "!");
+            }
+
+            for (FolderWalker walker : subfolders) walker.join();
+        }
+
+        /**
+         * Adds the images of an unchanged folder from the index, and walks its subfolders
+         * The subfolders are still checked one by one, as changes in them don't change the modification time of this folder
+         */
+        private void addIndexedImages(FolderIndex.IndexedFolder indexedFolder) {
+            List<FolderWalker> subfolders = new ArrayList<>();
+            if (depth > 0) {
+                for (String subfolder : indexedFolder.getSubfolders()) {
+                    FolderWalker walker = new FolderWalker(Paths.get(catalog.getWorkFolder(), subfolder), subfolder, depth - 1);
+                    walker.fork();
+                    subfolders.add(walker);
+                }
+            }
+
+            for (int i = 0; i < indexedFolder.getImageCount(); i++) {
+                if (isLoadingCancelled()) break;
+                int id = addImage(indexedFolder.getImageName(i), folder, indexedFolder.getImageSize(i), indexedFolder.getImageModifiedTime(i));
+                catalog.setDimensions(id, indexedFolder.getImageWidth(i), indexedFolder.getImageHeight(i));
+                catalog.setOrientation(id, indexedFolder.getImageOrientation(i));
+                catalog.setCaptureTime(id, indexedFolder.getImageCaptureTime(i));
+            }
+
+            for (FolderWalker walker : subfolders) walker.join();
+        }
+    }
+
+    /**
+     * Reads the metadata of a range of ids, splitting it up between the threads of the pool
+     * Fork/join tasks are serializable, but the readers are never serialized
+     */
+    @SuppressWarnings("serial")
+    private static class MetadataReader extends RecursiveAction {
+
+        private final static int MIN_RANGE_SIZE = 64;
+
+        private final ImageCatalog catalog;
+        private final int[] ids;
+        private final int start;
+        private final int end;
+        private final BooleanSupplier cancelled;
+        private final AtomicInteger readCount;
+
+        /**
+         * @param ids The ids to read, or null if the range itself consists of ids
+         * @param start The start of the range (inclusive)
+         * @param end The end of the range (exclusive)
+         */
+        MetadataReader(ImageCatalog catalog, int[] ids, int start, int end, BooleanSupplier cancelled, AtomicInteger readCount) {
+            this.catalog = catalog;
+            this.ids = ids;
+            this.start = start;
+            this.end = end;
+            this.cancelled = cancelled;
+            this.readCount = readCount;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > MIN_RANGE_SIZE) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new MetadataReader(catalog, ids, start, middle, cancelled, readCount),
+                        new MetadataReader(catalog, ids, middle, end, cancelled, readCount));
+                return;
+            }
+
+            for (int i = start; i < end; i++) {
+                // Forked tasks aren't interrupted when the reading is abandoned, so the flag is checked before every file
+                if (cancelled.getAsBoolean()) return;
+                int id = ids != null ? ids[i] : i;
+                // Removed images keep their id, but their files are gone
+                if (catalog.hasMetadata(id) || catalog.getPosition(id) < 0) continue;
+
+                ImageMetadata metadata = null;
+                try {
+                    metadata = ExifReader.readMetadata(catalog.getFile(id));
+                } catch (IOException e) {
+                    System.err.println("Error occurred while reading the metadata of " + catalog.getName(id) + "!");
+                }
+                catalog.setMetadata(id, metadata);
+                readCount.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package net.gabor6505.imageorganizer;
+
+import net.gabor6505.imageorganizer.image.ExifReader;
+import net.gabor6505.imageorganizer.image.ImageMetadata;
+
+import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the work folder (and its subfolders up to the loaded depth) for image files being created, changed or deleted,
+ * and reports the changes in batches on the Event Dispatch Thread, so the catalog can be updated without loading the folder again
+ * <br><br>
+ * Events are collected until the folder stays quiet for {@link #SETTLE_DELAY} milliseconds,
+ * so an image that is still being written is reported only once, with the attributes it has after it was written
+ * <br>
+ * The file system doesn't report renames, only a deletion and a creation, which are reported in the same batch
+ * <br>
+ * If the file system drops events because too many of them happened at once, the affected folders are listed again,
+ * and their current images are reported in a batch that marks them as listed, so images that are missing from it can be removed
+ */
+public class FolderWatcher {
+
+    private final static int SETTLE_DELAY = 500;
+    /**
+     * Changes are reported after this delay even if the folder doesn't get quiet, for example while a burst of images is being copied
+     */
+    private final static int MAX_REPORT_DELAY = 5000;
+
+    private final Path workFolder;
+    private final int depth;
+    private final Consumer<List<Change>> listener;
+    private final Runnable failureListener;
+    private final WatchService watchService;
+    private final Map<WatchKey, WatchedFolder> watchedFolders = new HashMap<>();
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    private volatile boolean hasPendingChanges = false;
+    private final AtomicInteger unappliedBatches = new AtomicInteger(0);
+    private volatile boolean changesMissed = false;
+
+    /**
+     * @param workFolder The folder to watch
+     * @param depth The number of subfolder levels below the work folder that should be watched
+     * @param listener Called on the Event Dispatch Thread with the changed images
+     * @param failureListener Called on the Event Dispatch Thread if the folder (or one of its subfolders) can't be watched any more,
+     *                        so changes are no longer picked up
+     * @throws IOException If the file system of the folder can't be watched
+     */
+    public FolderWatcher(Path workFolder, int depth, Consumer<List<Change>> listener, Runnable failureListener) throws IOException {
+        this.workFolder = workFolder;
+        this.depth = depth;
+        this.listener = listener;
+        this.failureListener = failureListener;
+        watchService = workFolder.getFileSystem().newWatchService();
+        thread = new Thread(this::run, "FolderWatcher");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts watching the folder
+     * The work folder itself is registered before this returns, so no image created in it afterwards is missed,
+     * its subfolders are registered in the background
+     *
+     * @throws IOException If the work folder can't be watched
+     */
+    public void start() throws IOException {
+        registerFolder(workFolder, "", depth);
+        thread.start();
+    }
+
+    /**
+     * Should be called on the Event Dispatch Thread, where the changes are reported
+     *
+     * @return True if every change noticed so far was already reported to the listener,
+     * and no changes were missed, so the catalog contains the current contents of the watched folders
+     */
+    public boolean isInSync() {
+        return !changesMissed && !hasPendingChanges && unappliedBatches.get() == 0;
+    }
+
+    /**
+     * Stops watching the folder, no more changes are reported after this
+     */
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            System.err.println("Error occurred while closing the folder watcher!");
+        }
+    }
+
+    private void run() {
+        try {
+            watchEntries(workFolder, "", depth, null);
+
+            Map<Path, WatchedFolder> pendingPaths = new LinkedHashMap<>();
+            Set<WatchedFolder> pendingListings = new LinkedHashSet<>();
+            long firstPendingTime = 0;
+            while (!closed) {
+                boolean pending = !pendingPaths.isEmpty() || !pendingListings.isEmpty();
+                hasPendingChanges = pending;
+                WatchKey key = pending ? watchService.poll(SETTLE_DELAY, TimeUnit.MILLISECONDS) : watchService.take();
+                if (pending && (key == null || System.currentTimeMillis() - firstPendingTime > MAX_REPORT_DELAY)) {
+                    report(pendingPaths, pendingListings);
+                    pendingPaths.clear();
+                    pendingListings.clear();
+                    if (key == null) continue;
+                }
+
+                WatchedFolder folder = watchedFolders.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (folder == null) continue;
+                    if (pendingPaths.isEmpty() && pendingListings.isEmpty()) firstPendingTime = System.currentTimeMillis();
+                    if (event.kind() == OVERFLOW) {
+                        System.err.println("Too many changes happened in the folder at once, listing it again!");
+                        pendingListings.add(folder);
+                    } else {
+                        pendingPaths.put(folder.path.resolve((Path) event.context()), folder);
+                    }
+                    hasPendingChanges = true;
+                }
+                if (!key.reset()) watchedFolders.remove(key);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        } catch (IOException e) {
+            System.err.println("Error occurred while watching the folder, changes won't be picked up!");
+            fail();
+        }
+    }
+
+    /**
+     * Marks the watcher as missing changes for the rest of the session, and tells the listener about it
+     */
+    private void fail() {
+        if (changesMissed) return;
+        changesMissed = true;
+        SwingUtilities.invokeLater(() -> {
+            if (!closed) failureListener.run();
+        });
+    }
+
+    /**
+     * Starts watching a folder and its subfolders up to the specified depth
+     *
+     * @param path The path of the folder
+     * @param folder The path of the folder relative to the work folder
+     * @param depth The number of subfolder levels below this folder that should be watched
+     * @param changes The list the images already in the folder are added to, or null if they shouldn't be reported
+     */
+    private void watchFolder(Path path, String folder, int depth, List<Change> changes) throws IOException {
+        registerFolder(path, folder, depth);
+        watchEntries(path, folder, depth, changes);
+    }
+
+    private void registerFolder(Path path, String folder, int depth) throws IOException {
+        WatchKey key = path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        watchedFolders.put(key, new WatchedFolder(path, folder, depth));
+    }
+
+    /**
+     * Starts watching the subfolders of an already watched folder up to the specified depth
+     *
+     * @param path The path of the folder
+     * @param folder The path of the folder relative to the work folder
+     * @param depth The number of subfolder levels below this folder that should be watched
+     * @param changes The list the images already in the folder are added to, or null if they shouldn't be reported
+     */
+    private void watchEntries(Path path, String folder, int depth, List<Change> changes) throws IOException {
+        if (depth <= 0 && changes == null) return;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                boolean imageFile = FolderLoader.isImageFile(name);
+                // Only the entries that are used are read, so images aren't read when only the subfolders are looked for
+                if (imageFile ? changes == null : depth <= 0 || name.startsWith(".")) continue;
+
+                BasicFileAttributes attributes = readAttributes(entry);
+                if (attributes == null) continue;
+
+                if (attributes.isDirectory() && depth > 0 && !name.startsWith(".")) {
+                    watchFolder(entry, getSubfolder(folder, name), depth - 1, changes);
+                } else if (imageFile && attributes.isRegularFile()) {
+                    changes.add(new Change(entry, folder, attributes));
+                }
+            }
+        }
+    }
+
+    private void report(Map<Path, WatchedFolder> pendingPaths, Set<WatchedFolder> pendingListings) {
+        List<Change> changes = new ArrayList<>();
+        for (WatchedFolder folder : pendingListings) {
+            try {
+                listFolder(folder, changes);
+            } catch (IOException e) {
+                System.err.println("Error occurred while listing the folder " + folder.path.getFileName() + " again!");
+                fail();
+            }
+        }
+
+        for (Map.Entry<Path, WatchedFolder> entry : pendingPaths.entrySet()) {
+            Path path = entry.getKey();
+            WatchedFolder folder = entry.getValue();
+            // The images of listed folders are already reported with their current attributes
+            if (pendingListings.contains(folder)) continue;
+            String name = path.getFileName().toString();
+            BasicFileAttributes attributes = readAttributes(path);
+
+            if (attributes != null && attributes.isDirectory()) {
+                // Images in a new subfolder (like one moved into the work folder) may have been created before it could be watched
+                if (folder.depth <= 0 || name.startsWith(".")) continue;
+                try {
+                    watchFolder(path, getSubfolder(folder.folder, name), folder.depth - 1, changes);
+                } catch (IOException e) {
+                    System.err.println("Error occurred while watching the subfolder " + name + "!");
+                    fail();
+                }
+            } else if (FolderLoader.isImageFile(name)) {
+                if (attributes == null) changes.add(new Change(folder.folder, name));
+                else if (attributes.isRegularFile()) changes.add(new Change(path, folder.folder, attributes));
+            }
+        }
+        if (changes.isEmpty() || closed) return;
+
+        // The batch counts as pending until the listener applied it
+        unappliedBatches.incrementAndGet();
+        SwingUtilities.invokeLater(() -> {
+            try {
+                if (!closed) listener.accept(changes);
+            } finally {
+                unappliedBatches.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Lists a watched folder again after some of its events were dropped, reporting every image in it,
+     * and starting to watch the subfolders that aren't watched yet (reporting their images too)
+     *
+     * @param folder The watched folder
+     * @param changes The list the images are added to, preceded by a change marking the folder as listed
+     */
+    private void listFolder(WatchedFolder folder, List<Change> changes) throws IOException {
+        Set<Path> watchedPaths = new HashSet<>();
+        for (WatchedFolder watchedFolder : watchedFolders.values()) watchedPaths.add(watchedFolder.path);
+
+        List<Change> listedChanges = new ArrayList<>();
+        listedChanges.add(new Change(folder.folder));
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.path)) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                BasicFileAttributes attributes = readAttributes(entry);
+                if (attributes == null) continue;
+
+                if (attributes.isDirectory()) {
+                    if (folder.depth > 0 && !name.startsWith(".") && !watchedPaths.contains(entry)) {
+                        watchFolder(entry, getSubfolder(folder.folder, name), folder.depth - 1, listedChanges);
+                    }
+                } else if (attributes.isRegularFile() && FolderLoader.isImageFile(name)) {
+                    listedChanges.add(new Change(entry, folder.folder, attributes, false));
+                }
+            }
+        }
+        changes.addAll(listedChanges);
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // The file was deleted (or moved away) since the event
+            return null;
+        }
+    }
+
+    private static String getSubfolder(String folder, String name) {
+        return folder.isEmpty() ? name : folder + File.separator + name;
+    }
+
+    private static class WatchedFolder {
+
+        private final Path path;
+        private final String folder;
+        private final int depth;
+
+        private WatchedFolder(Path path, String folder, int depth) {
+            this.path = path;
+            this.folder = folder;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * An image file that was created, changed or deleted
+     */
+    public static class Change {
+
+        private final String folder;
+        private final String name;
+        private final boolean listed;
+        private final boolean exists;
+        private final long size;
+        private final long modifiedTime;
+        private final ImageMetadata metadata;
+
+        /**
+         * Creates a change of an image file that was created or changed
+         */
+        private Change(Path path, String folder, BasicFileAttributes attributes) {
+            this(path, folder, attributes, true);
+        }
+
+        /**
+         * Creates a change of an image file that exists
+         *
+         * @param withMetadata True if the metadata should be read from the header of the file,
+         *                     false for images of a folder that was listed again, most of which haven't changed
+         */
+        private Change(Path path, String folder, BasicFileAttributes attributes, boolean withMetadata) {
+            this.folder = folder;
+            this.name = path.getFileName().toString();
+            this.listed = false;
+            this.exists = true;
+            this.size = attributes.size();
+            this.modifiedTime = attributes.lastModifiedTime().toMillis();
+            this.metadata = withMetadata ? readMetadata(path) : null;
+        }
+
+        /**
+         * Creates a change of an image file that was deleted
+         */
+        private Change(String folder, String name) {
+            this.folder = folder;
+            this.name = name;
+            this.listed = false;
+            this.exists = false;
+            this.size = 0;
+            this.modifiedTime = 0;
+            this.metadata = null;
+        }
+
+        /**
+         * Creates a change marking that a folder was listed again, it's followed by every image currently in the folder
+         */
+        private Change(String folder) {
+            this.folder = folder;
+            this.name = null;
+            this.listed = true;
+            this.exists = true;
+            this.size = 0;
+            this.modifiedTime = 0;
+            this.metadata = null;
+        }
+
+        /**
+         * The metadata is read here, so new images can be put to their place right away even if they are sorted by their capture date
+         */
+        private static ImageMetadata readMetadata(Path path) {
+            try {
+                return ExifReader.readMetadata(path.toFile());
+            } catch (IOException e) {
+                System.err.println("Error occurred while reading the metadata of " + path.getFileName() + "!");
+                return null;
+            }
+        }
+
+        /**
+         * @return The subfolder the image is in, or an empty string if it's directly in the work folder
+         */
+        public String getFolder() {
+            return folder;
+        }
+
+        /**
+         * @return The name of the image file, or null if the change marks a folder as listed
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return True if the folder was listed again, because some of its events were dropped,
+         * in which case every image that is currently in it is reported in the same batch, and the images missing from it were deleted
+         */
+        public boolean isFolderListed() {
+            return listed;
+        }
+
+        /**
+         * @return True if the image file was created or changed, false if it was deleted
+         */
+        public boolean exists() {
+            return exists;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+
+        /**
+         * @return The metadata read from the header of the image file,
+         * or null if it couldn't be read, the file was deleted, or it wasn't read because the folder was listed again
+         */
+        public ImageMetadata getMetadata() {
+            return metadata;
+        }
+    }
+}
@@ -1,39 +1,131 @@
 package net.gabor6505.imageorganizer;
 
-import javax.imageio.ImageIO;
+import net.gabor6505.imageorganizer.cache.NavigationTracker;
+import net.gabor6505.imageorganizer.cache.PackedImage;
+import net.gabor6505.imageorganizer.cache.PrefetchStats;
+import net.gabor6505.imageorganizer.cache.PreviewStore;
+import net.gabor6505.imageorganizer.cache.SlotArray;
+import net.gabor6505.imageorganizer.cache.WeightedLruCache;
+import net.gabor6505.imageorganizer.image.DecodedImage;
+import net.gabor6505.imageorganizer.image.ExifReader;
+import net.gabor6505.imageorganizer.image.ImageDecoder;
+import net.gabor6505.imageorganizer.image.ImageScaler;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.file.Files;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class ImageCacheManager extends SwingWorker<Void, Integer> {
 
-// TODO only cache the images that are close to the currently displayed image, to reduce RAM consumption
-public class ImageCacheManager extends SwingWorker<List<BufferedImage>, Integer> {
+    private final static int DECODE_THREADS = Runtime.getRuntime().availableProcessors();
+    private final static int MAX_QUEUED_DECODES = DECODE_THREADS * 2;
+    private final static long MIN_PREVIEW_SOURCE_SIZE = 1024 * 1024;
+    private final static float PREFETCH_LOOKAHEAD_SECONDS = 1f;
+    private final static int MAX_WINDOW_WIDENING = 4;
+    private final static long HOT_CACHE_BUDGET = 256 * 1024 * 1024;
+    private final static int FRAMES_AHEAD = 2;
+    private final static int FRAMES_BEHIND = 1;
+    private final static int CATALOG_POLL_INTERVAL = 50;
 
-    private final List<String> imageNames;
-    private final List<String> imageFolders;
-    private String workFolder;
+    private final ImageCatalog catalog;
     private final JProgressBar progressBar;
 
-    private final List<BufferedImage> cache;
-    private final List<Boolean> alreadyLoading;
+    private final WeightedLruCache<Integer, BufferedImage> cache;
+    private final WeightedLruCache<Integer, PackedImage> offHeapCache;
+    private final WeightedLruCache<Integer, byte[]> encodedCache;
+    private final SlotArray<CompletableFuture<BufferedImage>> loads = new SlotArray<>();
+    /**
+     * The number of times each image was invalidated, loads that were started before the last invalidation don't keep their result
+     */
+    private final Map<Integer, Integer> generations = new ConcurrentHashMap<>();
+
+    private final boolean decodeAtDisplaySize = PreferenceManager.isDecodeAtDisplaySize();
+    private final PreviewStore previewStore = PreviewStore.getInstance();
+    private final boolean embeddedThumbnails = PreferenceManager.isEmbeddedThumbnailsEnabled();
+    private volatile int targetWidth = 0;
+    private volatile int targetHeight = 0;
+
+    private final Map<Integer, BufferedImage> frames = new ConcurrentHashMap<>();
+    private volatile int frameIndex = -1;
+    private volatile int frameWidth = 0;
+    private volatile int frameHeight = 0;
+    private volatile GraphicsConfiguration frameConfig = null;
+
+    private final ExecutorService decodePool;
+    private final ExecutorService requestLoader;
+    private final ExecutorService thumbnailLoader;
+    private final ExecutorService frameRenderer;
+    private volatile int requestedId = -1;
+    private final AtomicInteger cachedCount = new AtomicInteger(0);
+    private volatile int cacheRadius = 0;
+    private volatile int windowStart = -1;
+    private volatile int windowEnd = -1;
 
-    private static int LOAD_COUNT = -1;
+    private final NavigationTracker navigationTracker = new NavigationTracker();
+    private final PrefetchStats prefetchStats = new PrefetchStats();
+    private final Map<Integer, Integer> prefetchDistances = new ConcurrentHashMap<>();
+
+    private static volatile int LOAD_COUNT = -1;
     private final int loadID;
 
     private boolean alreadyExecuted = false;
 
-    public ImageCacheManager(List<String> imageNames, List<String> imageFolders, String workFolder, JProgressBar progressBar) {
-        this.imageNames = imageNames;
-        this.imageFolders = imageFolders;
-        this.workFolder = workFolder;
+    /**
+     * The cache is keyed by the ids of the images, while the public methods take the positions of the images in the display order of the catalog,
+     * so images stay cached when the display order changes
+     *
+     * @param catalog The catalog of the images, which can still be filled while the cache is being used
+     * @param progressBar The progress bar showing the progress of the caching task
+     */
+    public ImageCacheManager(ImageCatalog catalog, JProgressBar progressBar) {
+        this.catalog = catalog;
         this.progressBar = progressBar;
 
-        cache = new ArrayList<>(Collections.nCopies(imageNames.size(), null));
-        alreadyLoading = new ArrayList<>(Collections.nCopies(imageNames.size(), false));
+        // With the off-heap tier enabled, decoded images are stored there, and the heap only keeps the images being shown
+        long offHeapBudget = PreferenceManager.getOffHeapCacheBudget();
+        if (offHeapBudget > 0) {
+            offHeapCache = new WeightedLruCache<>(offHeapBudget, PackedImage::getSize);
+            cache = new WeightedLruCache<>(Math.min(HOT_CACHE_BUDGET, PreferenceManager.getCacheBudget()), ImageCacheManager::getImageWeight);
+        } else {
+            offHeapCache = null;
+            cache = new WeightedLruCache<>(PreferenceManager.getCacheBudget(), ImageCacheManager::getImageWeight);
+        }
+
+        long encodedBudget = PreferenceManager.getEncodedCacheBudget();
+        encodedCache = encodedBudget > 0 ? new WeightedLruCache<>(encodedBudget, bytes -> bytes.length) : null;
+
+        decodePool = Executors.newFixedThreadPool(DECODE_THREADS, r -> {
+            Thread thread = new Thread(r, "ImageCacheDecoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        requestLoader = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "ImageCacheRequestLoader");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY + 1);
+            return thread;
+        });
+        thumbnailLoader = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "ImageCacheThumbnailLoader");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY + 1);
+            return thread;
+        });
+        frameRenderer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "ImageCacheFrameRenderer");
+            thread.setDaemon(true);
+            return thread;
+        });
 
         LOAD_COUNT++;
         loadID = LOAD_COUNT;
@@ -41,45 +133,108 @@ public class ImageCacheManager extends SwingWorker<List<BufferedImage>, Integer>
 
     public void executeTask() {
         if (alreadyExecuted) return;
+        if (getStorageBudget() <= 0) {
+            // A budget of 0 disables the cache, so every image would be dropped right after it was loaded
+            System.out.println("Cache budget is 0, not caching the folder.");
+            return;
+        }
         alreadyExecuted = true;
         progressBar.setVisible(true);
         progressBar.getParent().revalidate();
-        progressBar.setMaximum(imageNames.size());
+        progressBar.setMaximum(catalog.getIdCount());
         progressBar.setValue(0);
         execute();
     }
 
+    /**
+     * @return True if the caching task keeps the encoded contents of all images in memory,
+     * in which case it should also be executed when only the images around the visible one are decoded
+     */
+    public boolean isEncodedCacheEnabled() {
+        return encodedCache != null;
+    }
+
     @Override
-    protected List<BufferedImage> doInBackground() {
-        System.out.println("Caching " + imageNames.size() + " image(s)...");
-        for (int i = 0; i < imageNames.size(); i++) {
-            if (loadID != LOAD_COUNT) return null;
-            if (cache.get(i) != null) {
-                System.out.println("Image " + imageNames.get(i) + " is already cached, skipping.");
-                publish(i + 1);
-                continue;
-            }
+    protected Void doInBackground() {
+        if (cacheRadius > 0) System.out.println("Reading images into memory using " + DECODE_THREADS + " thread(s)...");
+        else System.out.println("Caching images using " + DECODE_THREADS + " thread(s)...");
+        CompletionService<Integer> completionService = new ExecutorCompletionService<>(decodePool);
+        boolean decoding = cacheRadius <= 0;
+        long evictionCount = getStorageEvictionCount();
+        int submitted = 0;
+        int queued = 0;
 
-            try {
-                if (alreadyLoading.get(i)) {
-                    System.out.println("Image " + imageNames.get(i) + " is already reserved for loading, skipping.");
-                    publish(i + 1);
+        try {
+            // Images are cached in the order they were added, and the task keeps waiting for new images until the catalog is complete
+            while (submitted < catalog.getIdCount() || queued > 0 || !catalog.isComplete()) {
+                if (loadID != LOAD_COUNT || !isCachingTaskActive()) {
+                    if (loadID != LOAD_COUNT) decodePool.shutdownNow();
+                    return null;
+                }
+                // The radius can change while the task is running, which changes the tier that limits it
+                if (decoding != cacheRadius <= 0) {
+                    decoding = cacheRadius <= 0;
+                    evictionCount = getStorageEvictionCount();
+                }
+                if (getStorageEvictionCount() != evictionCount) {
+                    System.out.println("Cache budget of " + getStorageBudget() / (1024 * 1024) + " MB reached, stopping.");
+                    return null;
+                }
+
+                // Keep the pool busy, but only queue a few decodes ahead so that cancelling stays quick
+                if (submitted < catalog.getIdCount() && queued < MAX_QUEUED_DECODES) {
+                    int id = submitted++;
+                    completionService.submit(() -> cacheImage(id));
+                    queued++;
                     continue;
                 }
-                cache.set(i, ImageIO.read(new File(workFolder + File.separator + imageNames.get(i))));
-            } catch (IOException e) {
-                System.err.println("Error occurred while caching!");
+                if (queued == 0) {
+                    Thread.sleep(CATALOG_POLL_INTERVAL);
+                    continue;
+                }
+
+                Future<Integer> result = completionService.take();
+                queued--;
+                publish(result.get());
             }
-            System.out.println("Caching " + imageNames.get(i));
-            publish(i + 1);
+        } catch (InterruptedException | RejectedExecutionException e) {
+            System.out.println("Caching was cancelled!");
+        } catch (ExecutionException e) {
+            System.err.println("Error occurred while caching!");
+            e.printStackTrace();
         }
-        return cache;
+        return null;
+    }
+
+    private int cacheImage(int id) {
+        if (loadID != LOAD_COUNT || !isCachingTaskActive() || catalog.getPosition(id) < 0) return id;
+
+        // A failing image is only logged, so that it doesn't stop the caching of the rest of the folder
+        try {
+            if (cacheRadius > 0) {
+                // Only the images around the visible one are decoded, the rest of the folder is only read into memory
+                if (!encodedCache.containsKey(id)) readEncodedImage(id);
+            } else if (isCached(id)) {
+                System.out.println("Image " + catalog.getName(id) + " is already cached, skipping.");
+            } else if (loads.get(id) != null) {
+                System.out.println("Image " + catalog.getName(id) + " is already being loaded, skipping.");
+            } else {
+                System.out.println("Caching " + catalog.getName(id));
+                loadShared(id);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error occurred while caching!");
+            e.printStackTrace();
+        }
+        cachedCount.incrementAndGet();
+        return id;
     }
 
     @Override
     protected void process(List<Integer> chunks) {
-        progressBar.setValue(chunks.get(0));
-        progressBar.setString(imageNames.get(chunks.get(0) - 1));
+        progressBar.setMaximum(catalog.getIdCount());
+        progressBar.setValue(cachedCount.get());
+        progressBar.setString(catalog.getName(chunks.get(chunks.size() - 1)));
     }
 
     @Override
@@ -89,15 +244,488 @@ public class ImageCacheManager extends SwingWorker<List<BufferedImage>, Integer>
         System.out.println("Images successfully cached!");
     }
 
-    public List<BufferedImage> getCache() {
+    public WeightedLruCache<Integer, BufferedImage> getCache() {
         return cache;
     }
 
+    /**
+     * Sets how many images should be kept cached before and after the currently visible image
+     * A radius of 0 disables the sliding window, so that the whole folder can be cached by {@link #executeTask()}
+     *
+     * @param radius The number of images to keep cached in each direction
+     */
+    public void setCacheRadius(int radius) {
+        cacheRadius = Math.max(0, radius);
+    }
+
+    /**
+     * Sets the size of the area the images are displayed in
+     * If decoding at display size is enabled, images are decoded with the largest subsampling that still fills this area,
+     * and cached images that turn out to be too small for a bigger area get decoded again when requested
+     *
+     * @param width  The width of the display area
+     * @param height The height of the display area
+     */
+    public void setTargetSize(int width, int height) {
+        if (!decodeAtDisplaySize) return;
+        targetWidth = width;
+        targetHeight = height;
+    }
+
+    /**
+     * Sets the size of the label the images are shown on, and the graphics configuration of its screen
+     * The frames of the images around the visible one are pre-rendered at this size, and are rendered again whenever it changes
+     *
+     * @param width The width of the label
+     * @param height The height of the label
+     * @param gc The graphics configuration of the label, or null if it's not displayed yet
+     */
+    public void setFrameSize(int width, int height, GraphicsConfiguration gc) {
+        if (width == frameWidth && height == frameHeight && gc == frameConfig) return;
+        frameWidth = width;
+        frameHeight = height;
+        frameConfig = gc;
+        frames.clear();
+        if (frameIndex >= 0) renderFrames(frameIndex);
+    }
+
+    /**
+     * Returns the pre-rendered frame of an image, which is already scaled to fit the frame size,
+     * and is compatible with the screen, so it can be drawn with a single blit
+     *
+     * @param index The position of the image in the catalog
+     * @return The frame of the image, or null if it's not rendered (yet), or the image doesn't need to be scaled
+     */
+    public BufferedImage getFrame(int index) {
+        if (index < 0 || catalog.size() <= index) return null;
+        return frames.get(catalog.getId(index));
+    }
+
+    /**
+     * Tells the cache which image is visible, so it can track the direction and speed of navigation,
+     * and pre-render the frames of the cached images next to it
+     * Should be called whenever the visible image or its position changes, whether caching is enabled or not
+     *
+     * @param index The position of the currently visible image in the catalog
+     */
+    public void setVisibleIndex(int index) {
+        if (index < 0 || catalog.size() <= index) return;
+        navigationTracker.recordStep(index, System.currentTimeMillis());
+        recordVisit(catalog.getId(index));
+        renderFrames(index);
+    }
+
+    /**
+     * Moves the cache window to the specified index
+     * Images that fall outside of the window are evicted, and the missing images inside it get loaded
+     * by a background operation, starting with the ones closest to the specified index
+     * <br><br>
+     * Once the user steps in a direction, most of the window is placed ahead of the specified index in that direction,
+     * and the window is widened further the faster the user is stepping
+     *
+     * Should be called after {@link #setVisibleIndex(int)}, which tracks the direction of navigation
+     *
+     * @param index The position of the currently visible image in the catalog
+     */
+    public void updateWindow(int index) {
+        if (index < 0 || catalog.size() <= index) return;
+        long time = System.currentTimeMillis();
+        if (cacheRadius <= 0) return;
+
+        int direction = navigationTracker.getDirection();
+        float velocity = navigationTracker.getVelocity(time);
+        int ahead = cacheRadius;
+        int behind = cacheRadius;
+        if (direction != 0) {
+            behind = Math.max(1, velocity > 0 ? cacheRadius / 4 : cacheRadius / 2);
+            ahead = Math.min(cacheRadius * MAX_WINDOW_WIDENING, 2 * cacheRadius - behind + Math.round(velocity * PREFETCH_LOOKAHEAD_SECONDS));
+        }
+
+        int forward = direction < 0 ? -1 : 1;
+        windowStart = forward > 0 ? index - behind : index - ahead;
+        windowEnd = forward > 0 ? index + ahead : index + behind;
+        cache.removeKeys(i -> !isInWindow(i));
+        if (offHeapCache != null) offHeapCache.removeKeys(i -> !isInWindow(i));
+
+        for (int distance = 1; distance <= Math.max(ahead, behind); distance++) {
+            if (distance <= ahead) scheduleWindowLoad(index + forward * distance, distance);
+            if (distance <= behind) scheduleWindowLoad(index - forward * distance, distance);
+        }
+    }
+
+    /**
+     * Drops everything cached for an image, for example because its file was changed or deleted
+     * Should be called before the image is removed from the catalog
+     *
+     * @param index The position of the image in the catalog
+     */
+    public void invalidateImage(int index) {
+        if (index < 0 || catalog.size() <= index) return;
+        int id = catalog.getId(index);
+        generations.merge(id, 1, Integer::sum);
+        // A load that is still in progress read the old file, so later requests have to start a new one instead of waiting for it
+        CompletableFuture<BufferedImage> inFlight = loads.get(id);
+        if (inFlight != null) loads.compareAndSet(id, inFlight, null);
+        removeCached(id);
+        frames.remove(id);
+        prefetchDistances.remove(id);
+    }
+
+    private void removeCached(int id) {
+        cache.remove(id);
+        if (offHeapCache != null) offHeapCache.remove(id);
+        if (encodedCache != null) encodedCache.remove(id);
+    }
+
+    private int getGeneration(int id) {
+        return generations.getOrDefault(id, 0);
+    }
+
+    /**
+     * @return The statistics of how many of the prefetched images were viewed, by the distance they were prefetched at
+     */
+    public PrefetchStats getPrefetchStats() {
+        return prefetchStats;
+    }
+
+    /**
+     * Stops all pending background operations of this cache
+     * Should be called when the cache gets replaced, for example when another folder is selected
+     */
+    public void shutdown() {
+        decodePool.shutdownNow();
+        requestLoader.shutdownNow();
+        thumbnailLoader.shutdownNow();
+        frameRenderer.shutdownNow();
+        if (prefetchStats.getHitCount() + prefetchStats.getMissCount() > 0) System.out.print(prefetchStats);
+    }
+
+    private void scheduleWindowLoad(int index, int distance) {
+        if (index < 0 || index >= catalog.size()) return;
+        int id = catalog.getId(index);
+        decodePool.execute(() -> {
+            if (loadID != LOAD_COUNT || !isInWindow(id)) return;
+            if (isCached(id) || loads.get(id) != null) return;
+
+            if (awaitLoad(loadShared(id)) == null) return;
+            // The window may have moved past the image while it was being decoded, in which case it would stay cached outside of it
+            if (!isInWindow(id)) {
+                cache.remove(id);
+                if (offHeapCache != null) offHeapCache.remove(id);
+                return;
+            }
+            prefetchDistances.put(id, distance);
+            prefetchStats.recordPrefetch(distance);
+
+            // The neighbours of the visible image get their frames once they are loaded
+            int position = catalog.getPosition(id);
+            int visibleIndex = frameIndex;
+            if (position >= 0 && Math.abs(position - visibleIndex) <= Math.max(FRAMES_AHEAD, FRAMES_BEHIND)) scheduleFrameRender(visibleIndex, position);
+        });
+    }
+
+    /**
+     * Pre-renders the frames of the images next to the visible one in the background, mostly ahead in the direction of travel
+     * Frames of images that are no longer next to the visible one are dropped
+     *
+     * @param index The position of the currently visible image in the catalog
+     */
+    private void renderFrames(int index) {
+        frameIndex = index;
+        int forward = navigationTracker.getDirection() < 0 ? -1 : 1;
+        int first = forward > 0 ? index - FRAMES_BEHIND : index - FRAMES_AHEAD;
+        int last = forward > 0 ? index + FRAMES_AHEAD : index + FRAMES_BEHIND;
+        frames.keySet().removeIf(id -> {
+            int position = catalog.getPosition(id);
+            return position < first || position > last;
+        });
+        if (frameWidth <= 0 || frameHeight <= 0) return;
+
+        for (int distance = 1; distance <= Math.max(FRAMES_AHEAD, FRAMES_BEHIND); distance++) {
+            if (distance <= FRAMES_AHEAD) scheduleFrameRender(index, index + forward * distance);
+            if (distance <= FRAMES_BEHIND) scheduleFrameRender(index, index - forward * distance);
+        }
+    }
+
+    private void scheduleFrameRender(int visibleIndex, int index) {
+        if (index < 0 || index >= catalog.size()) return;
+        int id = catalog.getId(index);
+        frameRenderer.execute(() -> {
+            if (loadID != LOAD_COUNT || frameIndex != visibleIndex || frames.containsKey(id)) return;
+
+            int width = frameWidth;
+            int height = frameHeight;
+            GraphicsConfiguration gc = frameConfig;
+            // Only images that are already cached get a frame, so rendering frames never starts a decode competing with the requested image
+            BufferedImage image = getCachedImage(id);
+            if (image == null) return;
+
+            Dimension size = ImageScaler.getFittedSize(image.getWidth(), image.getHeight(), width, height, false);
+            if (size.width == image.getWidth() && size.height == image.getHeight()) return;
+            BufferedImage frame = ImageScaler.scale(image, size.width, size.height, gc);
+
+            // Drop the frame if the label got resized or the user moved on while it was being rendered
+            if (width == frameWidth && height == frameHeight && Math.abs(catalog.getPosition(id) - frameIndex) <= Math.max(FRAMES_AHEAD, FRAMES_BEHIND)) {
+                frames.put(id, frame);
+            }
+        });
+    }
+
+    private void recordVisit(int id) {
+        Integer distance = prefetchDistances.remove(id);
+        if (!cache.containsKey(id) && (offHeapCache == null || !offHeapCache.containsKey(id))) prefetchStats.recordMiss();
+        else if (distance != null) prefetchStats.recordHit(distance);
+    }
+
+    private boolean isInWindow(int id) {
+        if (cacheRadius <= 0) return true;
+        int position = catalog.getPosition(id);
+        return position >= windowStart && position <= windowEnd;
+    }
+
+    /**
+     * Calculates the memory used by the pixels of the specified image
+     *
+     * @param image The image to weigh
+     * @return The size of the image's raster in bytes
+     */
+    private static long getImageWeight(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * The caching task decodes every image if the sliding window is disabled (also reading them into the encoded cache if that's enabled),
+     * otherwise it only reads every image into the encoded cache, if that's enabled
+     */
+    private boolean isCachingTaskActive() {
+        return encodedCache != null || cacheRadius <= 0;
+    }
+
+    private long getStorageEvictionCount() {
+        if (cacheRadius > 0 && encodedCache != null) return encodedCache.getEvictionCount();
+        return offHeapCache != null ? offHeapCache.getEvictionCount() : cache.getEvictionCount();
+    }
+
+    private long getStorageBudget() {
+        if (cacheRadius > 0 && encodedCache != null) return encodedCache.getBudget();
+        return offHeapCache != null ? offHeapCache.getBudget() : cache.getBudget();
+    }
+
+    /**
+     * Returns the cached image regardless of its resolution
+     * Images stored in the off-heap tier are copied back to the heap, and kept there while they are being shown
+     *
+     * @param id The id of the image
+     * @return The cached image, or null if it is not cached
+     */
+    private BufferedImage peekCachedImage(int id) {
+        BufferedImage image = cache.get(id);
+        if (image != null || offHeapCache == null) return image;
+
+        PackedImage packedImage = offHeapCache.get(id);
+        if (packedImage == null) return null;
+        image = packedImage.unpack();
+        cache.put(id, image);
+        return image;
+    }
+
+    /**
+     * @param id The id of the image
+     * @return The cached image, or null if it is not cached or it was decoded at a resolution that is too low for the current target size
+     */
+    private BufferedImage getCachedImage(int id) {
+        BufferedImage image = peekCachedImage(id);
+        if (image == null || !isSufficient(id, image.getWidth(), image.getHeight())) return null;
+        return image;
+    }
+
+    /**
+     * Checks whether the image is cached in any of the tiers, without copying it back to the heap
+     *
+     * @param id The id of the image
+     * @return True if the image is cached at a resolution that is enough for the current target size
+     */
+    private boolean isCached(int id) {
+        BufferedImage image = cache.get(id);
+        if (image != null) return isSufficient(id, image.getWidth(), image.getHeight());
+        if (offHeapCache == null) return false;
+
+        PackedImage packedImage = offHeapCache.get(id);
+        return packedImage != null && isSufficient(id, packedImage.getWidth(), packedImage.getHeight());
+    }
+
+    /**
+     * The size of the source image is known from its header once the metadata of the folder is read, or from decoding it
+     */
+    private boolean isSufficient(int id, int width, int height) {
+        int sourceWidth = catalog.getWidth(id);
+        int sourceHeight = catalog.getHeight(id);
+        if (sourceWidth <= 0 || sourceHeight <= 0) return true;
+        return ImageDecoder.isLargeEnough(width, height, sourceWidth, sourceHeight, targetWidth, targetHeight);
+    }
+
+    /**
+     * Stores a loaded image in the off-heap tier if it's enabled, or in the heap cache otherwise
+     *
+     * @param id The id of the image
+     * @param image The loaded image
+     */
+    private void storeImage(int id, BufferedImage image) {
+        if (offHeapCache == null || image == null) {
+            cache.put(id, image);
+            return;
+        }
+
+        try {
+            offHeapCache.put(id, PackedImage.pack(image));
+        } catch (OutOfMemoryError e) {
+            System.err.println("Not enough direct memory for the off-heap cache, consider raising -XX:MaxDirectMemorySize!");
+        }
+    }
+
+    /**
+     * Keeps an image that is about to be shown in the heap cache, if loading it didn't already put it there
+     *
+     * @param id The id of the image
+     * @param image The loaded image
+     */
+    private void keepLoadedImage(int id, BufferedImage image) {
+        if (offHeapCache != null && image != null) cache.put(id, image);
+    }
+
+    /**
+     * Loads the image at the specified id on the calling thread and puts it into the cache
+     * If another thread is already loading the same image, no new load is started, and the load of that thread is returned instead
+     * <br><br>
+     * Each id has its own slot holding the load in progress, which is claimed with a compare-and-set,
+     * so any number of threads requesting the same image share a single decode
+     *
+     * @param id The id of the image
+     * @return The load of the image, which is already completed if it was done by the calling thread
+     */
+    private CompletableFuture<BufferedImage> loadShared(int id) {
+        while (true) {
+            CompletableFuture<BufferedImage> inFlight = loads.get(id);
+            if (inFlight != null) return inFlight;
+
+            CompletableFuture<BufferedImage> load = new CompletableFuture<>();
+            int generation = getGeneration(id);
+            if (!loads.compareAndSet(id, null, load)) continue;
+
+            try {
+                // Another thread might have finished loading between the cache check of the caller and claiming the slot
+                BufferedImage image = getCachedImage(id);
+                if (image == null) {
+                    image = loadImage(id);
+                    storeImage(id, image);
+                    // The image was invalidated while it was being loaded, so the stored result (and the encoded file read for it) is stale
+                    if (getGeneration(id) != generation) removeCached(id);
+                }
+                load.complete(image);
+            } catch (RuntimeException | Error e) {
+                load.completeExceptionally(e);
+                throw e;
+            } finally {
+                loads.compareAndSet(id, load, null);
+            }
+            return load;
+        }
+    }
+
+    private BufferedImage awaitLoad(CompletableFuture<BufferedImage> load) {
+        try {
+            return load.join();
+        } catch (CompletionException | CancellationException e) {
+            System.err.println("Error occurred while loading image!");
+            return null;
+        }
+    }
+
+    private File getImageFile(int id) {
+        return catalog.getFile(id);
+    }
+
+    /**
+     * Reads the encoded contents of an image file into the encoded cache
+     *
+     * @param id The id of the image
+     * @return The contents of the file, or null if it couldn't be read
+     */
+    private byte[] readEncodedImage(int id) {
+        int generation = getGeneration(id);
+        try {
+            byte[] bytes = Files.readAllBytes(getImageFile(id).toPath());
+            encodedCache.put(id, bytes);
+            if (getGeneration(id) != generation) encodedCache.remove(id);
+            return bytes;
+        } catch (IOException e) {
+            System.err.println("Error occurred while reading image " + catalog.getName(id) + "!");
+            return null;
+        }
+    }
+
+    /**
+     * Loads an image from its stored preview if that is big enough for the current target size, or decodes it otherwise
+     * If the encoded cache is enabled, the image is decoded from the contents of the file kept in memory,
+     * otherwise it is decoded from disk directly
+     * <br>
+     * Images decoded from the original file are stored as previews for the next time
+     *
+     * @param id The id of the image
+     * @return The loaded image, or null if it couldn't be loaded
+     */
+    private BufferedImage loadImage(int id) {
+        File file = getImageFile(id);
+        int width = targetWidth;
+        int height = targetHeight;
+
+        if (previewStore != null) {
+            DecodedImage preview = previewStore.get(file);
+            if (preview != null && ImageDecoder.isLargeEnough(preview.getImage().getWidth(), preview.getImage().getHeight(),
+                    preview.getSourceWidth(), preview.getSourceHeight(), width, height)) {
+                catalog.setDimensions(id, preview.getSourceWidth(), preview.getSourceHeight());
+                return preview.getImage();
+            }
+        }
+
+        try {
+            DecodedImage decodedImage;
+            if (encodedCache != null) {
+                byte[] bytes = encodedCache.get(id);
+                if (bytes == null) bytes = readEncodedImage(id);
+                if (bytes == null) return null;
+                decodedImage = ImageDecoder.decode(bytes, width, height);
+            } else {
+                decodedImage = ImageDecoder.decode(file, width, height);
+            }
+            if (decodedImage == null) return null;
+            catalog.setDimensions(id, decodedImage.getSourceWidth(), decodedImage.getSourceHeight());
+            if (previewStore != null) storePreview(file, decodedImage);
+            return decodedImage.getImage();
+        } catch (IOException e) {
+            System.err.println("Error occurred while caching image " + catalog.getName(id) + "!");
+            return null;
+        }
+    }
+
+    private void storePreview(File file, DecodedImage decodedImage) {
+        BufferedImage image = decodedImage.getImage();
+        // Images that are not bigger than a preview are just as fast to decode from the original file
+        if (image.getWidth() == decodedImage.getSourceWidth() && image.getHeight() == decodedImage.getSourceHeight()
+                && file.length() < MIN_PREVIEW_SOURCE_SIZE) return;
+
+        try {
+            decodePool.execute(() -> previewStore.put(file, image, decodedImage.getSourceWidth(), decodedImage.getSourceHeight()));
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
     /**
      * Request a smooth-scaled image icon from the cache ready to be used on JLabels
      * If the image at the requested index is not yet cached, it gets cached and returned by a high priority background operation
      *
-     * @param index The index of the image in the cache
+     * @param index The position of the image in the catalog
      * @param width The width that the image should be scaled to
      * @param height The height that the image should be scaled to
      * @return The scaled version of the requested image, either from the cache or from disk, or null if the index is out of bounds
@@ -111,20 +739,114 @@ public class ImageCacheManager extends SwingWorker<List<BufferedImage>, Integer>
      * Request a BufferedImage from the cache
      * If the image at the requested index is not yet cached, it gets cached and returned by a high priority background operation
      *
-     * @param index The index of the image in the cache
+     * @param index The position of the image in the catalog
      * @return The image, either from the cache or from disk, or null if the index is out of bounds
      */
     public BufferedImage requestRawImage(int index) {
-        if (cache.size() <= index) return null;
-        if (cache.get(index) == null) {
-            alreadyLoading.set(index, true);
+        if (index < 0 || catalog.size() <= index) return null;
+        int id = catalog.getId(index);
+        BufferedImage image = getCachedImage(id);
+        if (image == null) {
+            image = awaitLoad(loadShared(id));
+            keepLoadedImage(id, image);
+        }
+        return image;
+    }
+
+    /**
+     * Returns the image at the specified index if it's cached at any resolution, without loading it otherwise
+     *
+     * @param index The position of the image in the catalog
+     * @return The cached image, or null if it's not cached or the index is out of bounds
+     */
+    public BufferedImage peekImage(int index) {
+        if (index < 0 || catalog.size() <= index) return null;
+        return peekCachedImage(catalog.getId(index));
+    }
+
+    /**
+     * Request a BufferedImage from the cache without blocking the calling thread
+     * If the image at the requested index is not yet cached, it gets cached by a high priority background operation,
+     * and then passed to the callback on the Event Dispatch Thread
+     * <br><br>
+     * Only the most recent request is loaded, older requests that are still waiting get skipped,
+     * and the callback is not called if another folder got loaded in the meantime
+     *
+     * @param index    The position of the image in the catalog
+     * @param callback The callback which receives the image once it is loaded, or null if loading failed
+     * @return The image if it is already cached, or null if it is being loaded in the background
+     * (if only a lower resolution version is cached, that is returned, and the callback receives the better one later)
+     */
+    public BufferedImage requestRawImageAsync(int index, Consumer<BufferedImage> callback) {
+        return requestRawImageAsync(index, callback, null);
+    }
+
+    /**
+     * Request a BufferedImage from the cache without blocking the calling thread
+     * If the image at the requested index is not yet cached, it gets cached by a high priority background operation,
+     * and then passed to the callback on the Event Dispatch Thread
+     * <br>
+     * While the image is being decoded, the thumbnail embedded in the image file is passed to the thumbnail callback,
+     * unless the image finishes loading first
+     * <br><br>
+     * Only the most recent request is loaded, older requests that are still waiting get skipped,
+     * and the callbacks are not called if another folder got loaded in the meantime
+     *
+     * @param index             The position of the image in the catalog
+     * @param callback          The callback which receives the image once it is loaded, or null if loading failed
+     * @param thumbnailCallback The callback which receives the embedded thumbnail, can be null
+     * @return The image if it is already cached, or null if it is being loaded in the background
+     * (if only a lower resolution version is cached, that is returned, and the callback receives the better one later)
+     */
+    public BufferedImage requestRawImageAsync(int index, Consumer<BufferedImage> callback, Consumer<BufferedImage> thumbnailCallback) {
+        if (index < 0 || catalog.size() <= index) return null;
+        int id = catalog.getId(index);
+        requestedId = id;
+
+        BufferedImage image = peekCachedImage(id);
+        if (image != null && isSufficient(id, image.getWidth(), image.getHeight())) return image;
+
+        AtomicBoolean loaded = new AtomicBoolean(false);
+        if (image == null && thumbnailCallback != null && embeddedThumbnails) requestThumbnail(id, loaded, thumbnailCallback);
+
+        requestLoader.execute(() -> {
+            if (loadID != LOAD_COUNT || requestedId != id) return;
+
+            BufferedImage loadedImage = getCachedImage(id);
+            if (loadedImage == null) {
+                loadedImage = awaitLoad(loadShared(id));
+                keepLoadedImage(id, loadedImage);
+            }
+
+            BufferedImage result = loadedImage;
+            SwingUtilities.invokeLater(() -> {
+                loaded.set(true);
+                if (loadID == LOAD_COUNT) callback.accept(result);
+            });
+        });
+        return image;
+    }
+
+    private void requestThumbnail(int id, AtomicBoolean loaded, Consumer<BufferedImage> thumbnailCallback) {
+        thumbnailLoader.execute(() -> {
+            if (loadID != LOAD_COUNT || requestedId != id || loaded.get()) return;
+
+            // Stored previews are fast to load and better than the thumbnail
+            File file = getImageFile(id);
+            if (previewStore != null && previewStore.contains(file)) return;
+
+            BufferedImage thumbnail;
             try {
-                cache.set(index, ImageIO.read(new File(workFolder + File.separator + imageNames.get(index))));
+                thumbnail = ExifReader.readThumbnail(file);
             } catch (IOException e) {
-                System.err.println("Error occurred while caching high priority image!");
+                System.err.println("Error occurred while reading the thumbnail of " + catalog.getName(id) + "!");
+                return;
             }
-        }
-        if (cache.get(index) == null) return null;
-        return cache.get(index);
+            if (thumbnail == null) return;
+
+            SwingUtilities.invokeLater(() -> {
+                if (loadID == LOAD_COUNT && !loaded.get()) thumbnailCallback.accept(thumbnail);
+            });
+        });
     }
 }
@@ -0,0 +1,591 @@
+package net.gabor6505.imageorganizer;
+
+import net.gabor6505.imageorganizer.image.ImageMetadata;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntToLongFunction;
+
+/**
+ * The images of the selected folder, shared by the loader, the cache and the UI
+ * <br><br>
+ * Every image gets an id when it's added, which never changes, so caches can be keyed by it,
+ * while the display order of the images (the positions the user navigates between) can change, for example once the folder gets sorted
+ * <br>
+ * Removed images keep their id, they are only taken out of the display order
+ * <br><br>
+ * The attributes are stored in one array per attribute indexed by id, so an image takes only a few tens of bytes:
+ * the names are packed one after another into a single char array, and the subfolders are stored once and referenced by an index
+ */
+public class ImageCatalog {
+
+    private final static int INITIAL_CAPACITY = 256;
+    private final static int INITIAL_NAME_CAPACITY = INITIAL_CAPACITY * 16;
+    /**
+     * The capture time of images whose capture date wasn't read yet
+     */
+    public final static long CAPTURE_TIME_UNKNOWN = Long.MIN_VALUE;
+
+    private final String workFolder;
+
+    private char[] nameChars = new char[INITIAL_NAME_CAPACITY];
+    private int nameLength = 0;
+    /**
+     * The name of image n is stored in nameChars from nameOffsets[n], and is nameLengths[n] characters long
+     * (renamed images get their new name appended to the end)
+     */
+    private int[] nameOffsets = new int[INITIAL_CAPACITY];
+    private int[] nameLengths = new int[INITIAL_CAPACITY];
+
+    private final List<String> folderNames = new ArrayList<>();
+    private final Map<String, Integer> folderIndices = new HashMap<>();
+    private int[] folders = new int[INITIAL_CAPACITY];
+
+    private int idCount = 0;
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    private long[] modifiedTimes = new long[INITIAL_CAPACITY];
+    private long[] captureTimes = new long[INITIAL_CAPACITY];
+    private int[] widths = new int[INITIAL_CAPACITY];
+    private int[] heights = new int[INITIAL_CAPACITY];
+    private byte[] orientations = new byte[INITIAL_CAPACITY];
+    private int[] order = new int[INITIAL_CAPACITY];
+    private int[] positions = new int[INITIAL_CAPACITY];
+    /**
+     * An open addressing hash table of the ids of the images in the display order, hashed by their folder and name,
+     * empty slots hold -1, and it's kept at most half full
+     */
+    private int[] lookup = newLookupTable(INITIAL_CAPACITY * 2);
+    private int lookupCount = 0;
+    private int size = 0;
+    private int changeCount = 0;
+
+    private volatile boolean complete = false;
+
+    /**
+     * @param workFolder The folder the images are loaded from
+     */
+    public ImageCatalog(String workFolder) {
+        this.workFolder = workFolder;
+    }
+
+    public String getWorkFolder() {
+        return workFolder;
+    }
+
+    /**
+     * Adds an image to the end of the display order
+     *
+     * @param name The file name of the image
+     * @param folder The subfolder the image is in, or an empty string if it's directly in the work folder
+     * @param size The size of the image file in bytes
+     * @param modifiedTime The last modification time of the image file in milliseconds since the epoch
+     * @return The id of the image
+     */
+    public synchronized int add(String name, String folder, long size, long modifiedTime) {
+        int id = idCount++;
+        if (this.size == order.length) order = Arrays.copyOf(order, this.size * 2);
+        if (id == positions.length) {
+            positions = Arrays.copyOf(positions, id * 2);
+            nameOffsets = Arrays.copyOf(nameOffsets, id * 2);
+            nameLengths = Arrays.copyOf(nameLengths, id * 2);
+            folders = Arrays.copyOf(folders, id * 2);
+            sizes = Arrays.copyOf(sizes, id * 2);
+            modifiedTimes = Arrays.copyOf(modifiedTimes, id * 2);
+            captureTimes = Arrays.copyOf(captureTimes, id * 2);
+            widths = Arrays.copyOf(widths, id * 2);
+            heights = Arrays.copyOf(heights, id * 2);
+            orientations = Arrays.copyOf(orientations, id * 2);
+        }
+
+        storeName(id, name);
+        folders[id] = getFolderIndex(folder);
+        sizes[id] = size;
+        modifiedTimes[id] = modifiedTime;
+        captureTimes[id] = CAPTURE_TIME_UNKNOWN;
+        widths[id] = 0;
+        heights[id] = 0;
+        orientations[id] = 0;
+        order[this.size] = id;
+        positions[id] = this.size;
+        addToLookup(id);
+        this.size++;
+        changeCount++;
+        return id;
+    }
+
+    private void storeName(int id, String name) {
+        if (nameLength + name.length() > nameChars.length) {
+            nameChars = Arrays.copyOf(nameChars, Math.max(nameChars.length * 2, nameLength + name.length()));
+        }
+        name.getChars(0, name.length(), nameChars, nameLength);
+        nameOffsets[id] = nameLength;
+        nameLengths[id] = name.length();
+        nameLength += name.length();
+    }
+
+    /**
+     * Takes an image out of the display order, the images after it move one position forward
+     *
+     * @param id The id of the image
+     */
+    public synchronized void remove(int id) {
+        int position = positions[id];
+        if (position < 0) return;
+
+        System.arraycopy(order, position + 1, order, position, size - position - 1);
+        size--;
+        for (int i = position; i < size; i++) positions[order[i]] = i;
+        positions[id] = -1;
+        removeFromLookup(id);
+        changeCount++;
+    }
+
+    /**
+     * Moves an image to the position where it belongs in the display order if it was sorted by the specified key
+     * The rest of the images have to be sorted by the same key already
+     *
+     * @param id The id of the image
+     * @param key The key the display order is sorted by
+     */
+    public synchronized void moveToSortedPosition(int id, SortKey key) {
+        int position = positions[id];
+        if (position < 0) return;
+        System.arraycopy(order, position + 1, order, position, size - position - 1);
+
+        IdComparator comparator = getComparator(key);
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (comparator.compare(order[middle], id) <= 0) low = middle + 1;
+            else high = middle;
+        }
+        System.arraycopy(order, low, order, low + 1, size - low - 1);
+        order[low] = id;
+        for (int i = Math.min(low, position); i <= Math.max(low, position); i++) positions[order[i]] = i;
+    }
+
+    /**
+     * Finds an image that is in the display order by its location
+     *
+     * @param folder The subfolder the image is in, or an empty string if it's directly in the work folder
+     * @param name The file name of the image
+     * @return The id of the image, or -1 if there is no such image
+     */
+    public synchronized int findId(String folder, String name) {
+        Integer index = folderIndices.get(folder);
+        if (index == null) return -1;
+
+        int folderIndex = index;
+        int mask = lookup.length - 1;
+        for (int slot = getLookupSlot(folderIndex, name.hashCode()); lookup[slot] >= 0; slot = (slot + 1) & mask) {
+            int id = lookup[slot];
+            if (folders[id] == folderIndex && nameLengths[id] == name.length() && nameEquals(id, name)) return id;
+        }
+        return -1;
+    }
+
+    private static int[] newLookupTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+        return table;
+    }
+
+    /**
+     * @return The hash code of the name of the image, the same as the hash code of the name as a string
+     */
+    private int getNameHash(int id) {
+        int hash = 0;
+        int offset = nameOffsets[id];
+        for (int i = 0; i < nameLengths[id]; i++) hash = 31 * hash + nameChars[offset + i];
+        return hash;
+    }
+
+    private int getLookupSlot(int folderIndex, int nameHash) {
+        int hash = nameHash * 31 + folderIndex;
+        return (hash ^ (hash >>> 16)) & (lookup.length - 1);
+    }
+
+    private void addToLookup(int id) {
+        if ((lookupCount + 1) * 2 > lookup.length) {
+            int[] oldLookup = lookup;
+            lookup = newLookupTable(oldLookup.length * 2);
+            for (int oldId : oldLookup) {
+                if (oldId >= 0) insertIntoLookup(oldId);
+            }
+        }
+        insertIntoLookup(id);
+        lookupCount++;
+    }
+
+    private void insertIntoLookup(int id) {
+        int mask = lookup.length - 1;
+        int slot = getLookupSlot(folders[id], getNameHash(id));
+        while (lookup[slot] >= 0) slot = (slot + 1) & mask;
+        lookup[slot] = id;
+    }
+
+    /**
+     * Removes an image from the lookup table, moving the ids after it back into the freed slot where their probe sequence allows,
+     * so lookups don't stop at the gap
+     */
+    private void removeFromLookup(int id) {
+        int mask = lookup.length - 1;
+        int slot = getLookupSlot(folders[id], getNameHash(id));
+        while (lookup[slot] != id) {
+            if (lookup[slot] < 0) return;
+            slot = (slot + 1) & mask;
+        }
+
+        int gap = slot;
+        for (int next = (gap + 1) & mask; lookup[next] >= 0; next = (next + 1) & mask) {
+            int home = getLookupSlot(folders[lookup[next]], getNameHash(lookup[next]));
+            // The id can be moved into the gap if the gap is between its home slot and its current slot
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                lookup[gap] = lookup[next];
+                gap = next;
+            }
+        }
+        lookup[gap] = -1;
+        lookupCount--;
+    }
+
+    private boolean nameEquals(int id, String name) {
+        int offset = nameOffsets[id];
+        for (int i = 0; i < name.length(); i++) {
+            if (nameChars[offset + i] != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of images in the display order
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of ids given out so far, every id is smaller than this
+     */
+    public synchronized int getIdCount() {
+        return idCount;
+    }
+
+    /**
+     * @param position The position of the image in the display order
+     * @return The id of the image
+     */
+    public synchronized int getId(int position) {
+        if (position < 0 || position >= size) throw new IndexOutOfBoundsException("Position: " + position + ", size: " + size);
+        return order[position];
+    }
+
+    /**
+     * @param id The id of the image
+     * @return The position of the image in the display order, or -1 if the image was removed
+     */
+    public synchronized int getPosition(int id) {
+        return positions[id];
+    }
+
+    public synchronized String getName(int id) {
+        return new String(nameChars, nameOffsets[id], nameLengths[id]);
+    }
+
+    public synchronized void rename(int id, String name) {
+        boolean inOrder = positions[id] >= 0;
+        if (inOrder) removeFromLookup(id);
+        storeName(id, name);
+        if (inOrder) addToLookup(id);
+    }
+
+    public synchronized String getFolder(int id) {
+        return folderNames.get(folders[id]);
+    }
+
+    public synchronized void setFolder(int id, String folder) {
+        boolean inOrder = positions[id] >= 0;
+        if (inOrder) removeFromLookup(id);
+        folders[id] = getFolderIndex(folder);
+        if (inOrder) addToLookup(id);
+    }
+
+    /**
+     * @param folder The path of a subfolder relative to the work folder
+     * @return The index of the subfolder in the list of subfolders, which is added to the list if it's not there yet
+     */
+    private int getFolderIndex(String folder) {
+        Integer index = folderIndices.get(folder);
+        if (index != null) return index;
+
+        folderNames.add(folder);
+        folderIndices.put(folder, folderNames.size() - 1);
+        return folderNames.size() - 1;
+    }
+
+    public synchronized long getSize(int id) {
+        return sizes[id];
+    }
+
+    public synchronized long getModifiedTime(int id) {
+        return modifiedTimes[id];
+    }
+
+    /**
+     * Updates the attributes of an image whose file was changed, the metadata of the image has to be read again
+     *
+     * @param id The id of the image
+     * @param size The new size of the image file in bytes
+     * @param modifiedTime The new modification time of the image file in milliseconds since the epoch
+     */
+    public synchronized void setAttributes(int id, long size, long modifiedTime) {
+        sizes[id] = size;
+        modifiedTimes[id] = modifiedTime;
+        captureTimes[id] = CAPTURE_TIME_UNKNOWN;
+        widths[id] = 0;
+        heights[id] = 0;
+        orientations[id] = 0;
+    }
+
+    /**
+     * @param id The id of the image
+     * @return The capture time of the image in milliseconds since the epoch, -1 if the image doesn't have one,
+     * or {@link #CAPTURE_TIME_UNKNOWN} if it wasn't read yet
+     */
+    public synchronized long getCaptureTime(int id) {
+        return captureTimes[id];
+    }
+
+    public synchronized void setCaptureTime(int id, long captureTime) {
+        captureTimes[id] = captureTime;
+    }
+
+    /**
+     * @param id The id of the image
+     * @return The width of the image in pixels, or 0 if it's not known yet
+     */
+    public synchronized int getWidth(int id) {
+        return widths[id];
+    }
+
+    /**
+     * @param id The id of the image
+     * @return The height of the image in pixels, or 0 if it's not known yet
+     */
+    public synchronized int getHeight(int id) {
+        return heights[id];
+    }
+
+    public synchronized void setDimensions(int id, int width, int height) {
+        widths[id] = width;
+        heights[id] = height;
+    }
+
+    /**
+     * @param id The id of the image
+     * @return The EXIF orientation of the image (1-8), or 0 if its metadata wasn't read yet
+     */
+    public synchronized int getOrientation(int id) {
+        return orientations[id];
+    }
+
+    public synchronized void setOrientation(int id, int orientation) {
+        orientations[id] = (byte) orientation;
+    }
+
+    /**
+     * @param id The id of the image
+     * @return True if the metadata of the image was already read from the header of its file
+     */
+    public synchronized boolean hasMetadata(int id) {
+        return orientations[id] != 0;
+    }
+
+    /**
+     * Stores the metadata read from the header of an image file
+     *
+     * @param id The id of the image
+     * @param metadata The metadata of the image, or null if it couldn't be read, in which case it's not read again
+     */
+    public synchronized void setMetadata(int id, ImageMetadata metadata) {
+        if (metadata == null) {
+            orientations[id] = ImageMetadata.ORIENTATION_NORMAL;
+            if (captureTimes[id] == CAPTURE_TIME_UNKNOWN) captureTimes[id] = -1;
+            return;
+        }
+        widths[id] = metadata.getWidth();
+        heights[id] = metadata.getHeight();
+        orientations[id] = (byte) metadata.getOrientation();
+        captureTimes[id] = metadata.getCaptureTime();
+    }
+
+    /**
+     * Sorts the images by the specified key, using only the attributes already stored in the catalog
+     * Images with equal keys are sorted by name
+     *
+     * @param key The key to sort by
+     * @return The ids of all images in sorted order, which can be applied with {@link #setOrder(int[])}
+     */
+    public synchronized int[] getSortedOrder(SortKey key) {
+        int[] ids = Arrays.copyOf(order, size);
+        sortIds(ids, getComparator(key));
+        return ids;
+    }
+
+    /**
+     * Sorts ids with a stable bottom-up merge sort, so they don't have to be boxed to be sorted with a comparator
+     * Runs that are already in order are not merged, so sorting an already sorted order only takes a linear pass
+     */
+    private static void sortIds(int[] ids, IdComparator comparator) {
+        int[] buffer = new int[ids.length];
+        for (int width = 1; width < ids.length; width *= 2) {
+            for (int low = 0; low < ids.length - width; low += width * 2) {
+                int middle = low + width;
+                int high = Math.min(middle + width, ids.length);
+                if (comparator.compare(ids[middle - 1], ids[middle]) <= 0) continue;
+
+                int left = low, right = middle;
+                for (int i = low; i < high; i++) {
+                    if (right >= high || (left < middle && comparator.compare(ids[left], ids[right]) <= 0)) buffer[i] = ids[left++];
+                    else buffer[i] = ids[right++];
+                }
+                System.arraycopy(buffer, low, ids, low, high - low);
+            }
+        }
+    }
+
+    private IdComparator getComparator(SortKey key) {
+        IntToLongFunction sortValue;
+        switch (key) {
+            case SIZE:
+                sortValue = id -> sizes[id];
+                break;
+            case MODIFIED:
+                sortValue = id -> modifiedTimes[id];
+                break;
+            case CAPTURE_DATE:
+                // Images without a capture date are sorted by their modification time
+                sortValue = id -> captureTimes[id] >= 0 ? captureTimes[id] : modifiedTimes[id];
+                break;
+            default:
+                return this::compareNames;
+        }
+        return (id1, id2) -> {
+            int result = Long.compare(sortValue.applyAsLong(id1), sortValue.applyAsLong(id2));
+            return result != 0 ? result : compareNames(id1, id2);
+        };
+    }
+
+    /**
+     * Compares two images by their ids
+     */
+    private interface IdComparator {
+        int compare(int id1, int id2);
+    }
+
+    /**
+     * Compares the names of two images the same way as {@link String#CASE_INSENSITIVE_ORDER},
+     * but directly in the name array, without creating strings for them
+     */
+    private int compareNames(int id1, int id2) {
+        int offset1 = nameOffsets[id1], length1 = nameLengths[id1];
+        int offset2 = nameOffsets[id2], length2 = nameLengths[id2];
+        for (int i = 0; i < Math.min(length1, length2); i++) {
+            char c1 = nameChars[offset1 + i];
+            char c2 = nameChars[offset2 + i];
+            if (c1 == c2) continue;
+
+            c1 = Character.toUpperCase(c1);
+            c2 = Character.toUpperCase(c2);
+            if (c1 == c2) continue;
+
+            c1 = Character.toLowerCase(c1);
+            c2 = Character.toLowerCase(c2);
+            if (c1 != c2) return c1 - c2;
+        }
+        return length1 - length2;
+    }
+
+    /**
+     * @param id The id of the image
+     * @return The current location of the image file, taking into account the subfolder it was moved to
+     */
+    public File getFile(int id) {
+        String folder = getFolder(id);
+        if (folder.isEmpty()) return new File(workFolder + File.separator + getName(id));
+        return new File(workFolder + File.separator + folder + File.separator + getName(id));
+    }
+
+    /**
+     * Replaces the display order of the images
+     *
+     * @param ids The ids of all images, in their new order
+     */
+    public synchronized void setOrder(int[] ids) {
+        if (ids.length != size) throw new IllegalArgumentException("The new order has to contain every image!");
+        System.arraycopy(ids, 0, order, 0, size);
+        for (int i = 0; i < size; i++) positions[order[i]] = i;
+    }
+
+    /**
+     * @return The number of times images were added to or removed from the display order,
+     * which can be compared to tell whether a sorted order computed earlier still contains the same images
+     */
+    public synchronized int getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * @return True if the loader finished adding the images of the folder
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete() {
+        complete = true;
+    }
+
+    /**
+     * The attributes the images can be sorted by
+     */
+    public enum SortKey {
+        NAME("name", "Name"),
+        SIZE("size", "Size"),
+        MODIFIED("modified", "Date modified"),
+        CAPTURE_DATE("captureDate", "Date taken");
+
+        private final String settingValue;
+        private final String displayName;
+
+        SortKey(String settingValue, String displayName) {
+            this.settingValue = settingValue;
+            this.displayName = displayName;
+        }
+
+        public String getSettingValue() {
+            return settingValue;
+        }
+
+        /**
+         * @param settingValue The value of the sort order setting
+         * @return The sort key with the specified setting value, or null if there is none
+         */
+        public static SortKey fromSettingValue(String settingValue) {
+            for (SortKey key : values()) {
+                if (key.settingValue.equals(settingValue)) return key;
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return displayName;
+        }
+    }
+}
@@ -4,12 +4,24 @@ import net.gabor6505.imageorganizer.components.ImageLabel;
 import net.gabor6505.imageorganizer.components.KeyBindConfigWindow;
 
 import javax.swing.*;
+import javax.swing.Timer;
 import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.*;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static javax.swing.JFileChooser.APPROVE_OPTION;
@@ -17,17 +29,38 @@ import static javax.swing.JFileChooser.APPROVE_OPTION;
 public class ImageOrganizer extends JFrame implements KeyEventDispatcher {
 
     private final String TITLE = "Image Organizer";
+    /**
+     * The number of images before and after the visible one whose metadata is read before the rest of the folder
+     */
+    private final static int METADATA_PRIORITY_RADIUS = 32;
 
     private String workFolder = "";
     private boolean cacheImages = false;
+    private int cacheRadius = PreferenceManager.getCacheRadius();
     private int imageIndex = -1;
+    /**
+     * The id of the image shown in the label, which may differ from the one at the current index while the user is skimming
+     */
+    private int shownId = -1;
+    private long lastStepTime = 0;
+    /**
+     * Steps that follow the previous one within this interval (like the ones generated by holding down an arrow key) are coalesced,
+     * and only the image the user stopped at is requested once no more steps arrive
+     * It's the same interval under which the image label draws with the fast render quality
+     */
+    private final int stepInterval = PreferenceManager.getInteractiveStepInterval();
+    private final Timer stepTimer;
 
     private JLabel selectedFolderLabel;
     private ImageLabel imageLabel;
     private JProgressBar cacheProgressBar;
 
-    private final List<String> imageNames = new ArrayList<>();
-    private final List<String> imageFolders = new ArrayList<>();
+    private ImageCatalog catalog = null;
+    private FolderLoader folderLoader = null;
+    private SwingWorker<Void, Void> metadataWorker = null;
+    private SwingWorker<int[], Void> sortWorker = null;
+    private FolderWatcher folderWatcher = null;
+    private final List<FolderWatcher.Change> pendingChanges = new ArrayList<>();
     private ImageCacheManager imageCache = null;
 
     private KeyBindConfigWindow configWindow = null;
@@ -37,8 +70,26 @@ public class ImageOrganizer extends JFrame implements KeyEventDispatcher {
         super();
         setupLookAndFeel();
 
+        stepTimer = new Timer(stepInterval, e -> {
+            if (imageCache != null && imageIndex >= 0) showImage();
+        });
+        stepTimer.setRepeats(false);
+
         setTitle(TITLE);
         setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                // Store the images moved during this session, and the dimensions of the viewed images
+                // The app exits once this returns, so the index (and the ones of the folders opened earlier) has to be written by then
+                if (folderLoader == null) return;
+                try {
+                    folderLoader.saveIndex(folderWatcher != null && folderWatcher.isInSync()).join();
+                } catch (CompletionException ex) {
+                    System.err.println("Error occurred while saving the folder index!");
+                }
+            }
+        });
         KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(this);
 
         setMinimumSize(new Dimension(320, 160));
@@ -61,6 +112,22 @@ public class ImageOrganizer extends JFrame implements KeyEventDispatcher {
             // IMAGE LABEL
             imageLabel = new ImageLabel();
             imageLabel.setHorizontalAlignment(SwingConstants.CENTER);
+            // Request the image again once resizing stopped, in case the cached one is too small for the new size
+            Timer resizeTimer = new Timer(ImageLabel.RESIZE_DELAY, null);
+            resizeTimer.setRepeats(false);
+            resizeTimer.addActionListener(e -> {
+                if (imageCache == null) return;
+                imageCache.setFrameSize(imageLabel.getWidth(), imageLabel.getHeight(), imageLabel.getGraphicsConfiguration());
+                if (imageIndex >= 0) showImage();
+            });
+            imageLabel.addComponentListener(new ComponentAdapter() {
+                @Override
+                public void componentResized(ComponentEvent e) {
+                    if (imageCache == null) return;
+                    imageCache.setTargetSize(imageLabel.getWidth(), imageLabel.getHeight());
+                    resizeTimer.restart();
+                }
+            });
             centerPanel.add(imageLabel, BorderLayout.CENTER);
         }
 
@@ -80,10 +147,46 @@ public class ImageOrganizer extends JFrame implements KeyEventDispatcher {
                 cacheCheckBox.addItemListener(e -> {
                     cacheImages = cacheCheckBox.isSelected();
                     System.out.println("Caching turned " + (cacheImages ? "on " : "off"));
-                    if (cacheImages && imageCache != null) imageCache.executeTask();
+                    updateCache();
                 });
                 eastNorthPanel.add(cacheCheckBox);
 
+                // CACHE RADIUS SPINNER
+                JLabel cacheRadiusLabel = new JLabel("Radius:");
+                cacheRadiusLabel.setToolTipText("Number of images cached before and after the visible image (0 caches the whole folder)");
+                eastNorthPanel.add(cacheRadiusLabel);
+
+                JSpinner cacheRadiusSpinner = new JSpinner(new SpinnerNumberModel(cacheRadius, 0, 1000, 1));
+                cacheRadiusSpinner.setToolTipText(cacheRadiusLabel.getToolTipText());
+                cacheRadiusSpinner.addChangeListener(e -> {
+                    cacheRadius = (Integer) cacheRadiusSpinner.getValue();
+                    PreferenceManager.setCacheRadius(cacheRadius);
+                    updateCache();
+                });
+                eastNorthPanel.add(cacheRadiusSpinner);
+
+                // SUBFOLDERS CHECKBOX
+                JCheckBox subfoldersCheckBox = new JCheckBox("Subfolders", PreferenceManager.isLoadSubfoldersEnabled());
+                subfoldersCheckBox.setToolTipText("Also load the images in the subfolders of the selected folder, like the ones moved there earlier");
+                subfoldersCheckBox.addItemListener(e -> {
+                    PreferenceManager.setLoadSubfoldersEnabled(subfoldersCheckBox.isSelected());
+                    if (!workFolder.isEmpty()) {
+                        imageIndex = -1;
+                        loadImages();
+                    }
+                });
+                eastNorthPanel.add(subfoldersCheckBox);
+
+                // SORT ORDER COMBO BOX
+                eastNorthPanel.add(new JLabel("Sort by:"));
+                JComboBox<ImageCatalog.SortKey> sortKeyComboBox = new JComboBox<>(ImageCatalog.SortKey.values());
+                sortKeyComboBox.setSelectedItem(PreferenceManager.getSortKey());
+                sortKeyComboBox.addActionListener(e -> {
+                    PreferenceManager.setSortKey((ImageCatalog.SortKey) sortKeyComboBox.getSelectedItem());
+                    sortImages();
+                });
+                eastNorthPanel.add(sortKeyComboBox);
+
                 // SELECT BUTTON
                 JButton selectFolderBtn = new JButton("Select...");
                 selectFolderBtn.addActionListener(e -> selectFolder());
@@ -168,40 +271,300 @@ public class ImageOrganizer extends JFrame implements KeyEventDispatcher {
         if (workFolder.equals(directory.getPath())) return;
         workFolder = directory.getPath();
         selectedFolderLabel.setText("Selected folder: " + workFolder);
-        imageNames.clear();
-        imageFolders.clear();
         imageIndex = -1;
         loadImages();
     }
 
-    // TODO also load images from the 1st level subfolders (so that images previously moved can still be modified after app restart) - this should be a toggleable setting
     private void loadImages() {
-        System.out.println("Loading image names...");
-
         File dir = new File(workFolder);
         if (!dir.isDirectory()) {
             System.err.println("Image loading failed: the path does not point to a directory!");
             return;
         }
 
-        File[] images = dir.listFiles((d, name) -> name.toLowerCase().endsWith(".png") || name.toLowerCase().endsWith(".jpg") || name.toLowerCase().endsWith(".jpeg") || name.toLowerCase().endsWith(".jpg"));
-        if (images == null) return;
+        if (folderLoader != null) {
+            folderLoader.saveIndex(folderWatcher != null && folderWatcher.isInSync());
+            folderLoader.cancel(true);
+        }
+        if (metadataWorker != null) metadataWorker.cancel(false);
+        if (sortWorker != null) sortWorker.cancel(false);
+        if (folderWatcher != null) folderWatcher.close();
+        if (imageCache != null) imageCache.shutdown();
+        catalog = new ImageCatalog(workFolder);
+        pendingChanges.clear();
+        imageCache = new ImageCacheManager(catalog, cacheProgressBar);
+        imageCache.setTargetSize(imageLabel.getWidth(), imageLabel.getHeight());
+        imageCache.setFrameSize(imageLabel.getWidth(), imageLabel.getHeight(), imageLabel.getGraphicsConfiguration());
+
+        // The first image is shown as soon as the loader finds it, and the rest of the folder is streamed into the catalog
+        ImageCatalog loadedCatalog = catalog;
+        folderLoader = new FolderLoader(catalog, () -> {
+            if (loadedCatalog != catalog || imageIndex >= 0) return;
+            // Initial step from -1 to 0 position
+            stepImage(true);
+            updateCache();
+        }, order -> {
+            if (loadedCatalog != catalog || order == null) return;
+            applyOrder(order);
+            applyFolderChanges(new ArrayList<>(pendingChanges));
+            pendingChanges.clear();
+            readMetadata();
+        });
+
+        // The work folder is watched from before it gets listed, so that no image created in the meantime is missed
+        try {
+            folderWatcher = new FolderWatcher(Paths.get(workFolder), FolderLoader.getLoadedDepth(), changes -> {
+                if (loadedCatalog == catalog) applyFolderChanges(changes);
+            }, () -> {
+                if (loadedCatalog == catalog) showWatchFailure();
+            });
+            folderWatcher.start();
+        } catch (IOException e) {
+            folderWatcher = null;
+            System.err.println("Folder monitoring is not available, new images won't be picked up!");
+            showWatchFailure();
+        }
+        folderLoader.execute();
+    }
+
+    /**
+     * Tells the user that changes made to the folder outside of the app are no longer picked up
+     */
+    private void showWatchFailure() {
+        selectedFolderLabel.setText("Selected folder: " + workFolder + " (not monitored, changes made outside the app won't show up)");
+    }
+
+    /**
+     * Updates the catalog and the cache with the images that were created, changed or deleted in the folder,
+     * keeping the currently visible image visible (or the one after it if it was deleted)
+     * <br><br>
+     * New images are put to their place in the current sort order, and deleted images that have a new image
+     * with the same size and modification time in the same batch are treated as renamed, so they keep their cached data
+     * <br>
+     * Folders that were listed again report all of their images, the ones missing from the listing are treated as deleted
+     *
+     * @param changes The changed images reported by the folder watcher
+     */
+    private void applyFolderChanges(List<FolderWatcher.Change> changes) {
+        if (changes.isEmpty()) return;
+        if (!catalog.isComplete()) {
+            // Until the loader finishes the display order isn't sorted yet, and the loader might list the changed images itself
+            pendingChanges.addAll(changes);
+            return;
+        }
+
+        ImageCatalog.SortKey sortKey = PreferenceManager.getSortKey();
+        int visibleId = imageIndex >= 0 ? catalog.getId(imageIndex) : -1;
+        int visiblePosition = imageIndex;
+        boolean visibleChanged = false;
+
+        List<FolderWatcher.Change> createdImages = new ArrayList<>();
+        List<Integer> deletedIds = new ArrayList<>();
+        Set<String> listedFolders = new HashSet<>();
+        Set<String> listedImages = new HashSet<>();
+        for (FolderWatcher.Change change : changes) {
+            if (change.isFolderListed()) {
+                listedFolders.add(change.getFolder());
+                continue;
+            }
+            if (listedFolders.contains(change.getFolder())) listedImages.add(change.getFolder() + File.separator + change.getName());
+
+            int id = catalog.findId(change.getFolder(), change.getName());
+            if (!change.exists()) {
+                if (id >= 0) deletedIds.add(id);
+            } else if (id < 0) {
+                createdImages.add(change);
+            } else if (change.getSize() != catalog.getSize(id) || change.getModifiedTime() != catalog.getModifiedTime(id)) {
+                // Images moved by the app itself show up as created in their new folder, but their attributes don't change
+                imageCache.invalidateImage(catalog.getPosition(id));
+                catalog.setAttributes(id, change.getSize(), change.getModifiedTime());
+                // The metadata of listed images isn't read by the watcher, it's read in the background instead
+                if (!listedFolders.contains(change.getFolder())) catalog.setMetadata(id, change.getMetadata());
+                catalog.moveToSortedPosition(id, sortKey);
+                if (id == visibleId) visibleChanged = true;
+            }
+        }
+        if (!listedFolders.isEmpty()) {
+            // The images of the listed folders that weren't listed were deleted while the events were dropped
+            for (int position = 0; position < catalog.size(); position++) {
+                int id = catalog.getId(position);
+                String folder = catalog.getFolder(id);
+                if (listedFolders.contains(folder) && !listedImages.contains(folder + File.separator + catalog.getName(id))) deletedIds.add(id);
+            }
+        }
+
+        for (FolderWatcher.Change change : createdImages) {
+            int id = findRenamedImage(deletedIds, change);
+            if (id >= 0) {
+                deletedIds.remove(Integer.valueOf(id));
+                catalog.rename(id, change.getName());
+                catalog.setFolder(id, change.getFolder());
+                if (id == visibleId) visibleChanged = true;
+            } else {
+                id = catalog.add(change.getName(), change.getFolder(), change.getSize(), change.getModifiedTime());
+                if (!listedFolders.contains(change.getFolder())) catalog.setMetadata(id, change.getMetadata());
+            }
+            catalog.moveToSortedPosition(id, sortKey);
+        }
+
+        for (int id : deletedIds) {
+            if (id == visibleId) {
+                visiblePosition = catalog.getPosition(id);
+                visibleId = -1;
+                visibleChanged = true;
+            }
+            imageCache.invalidateImage(catalog.getPosition(id));
+            catalog.remove(id);
+        }
+        System.out.println("Folder changed: " + createdImages.size() + " image(s) created, " + deletedIds.size() + " deleted");
+
+        if (catalog.size() == 0) {
+            imageIndex = -1;
+            shownId = -1;
+            imageLabel.setImageFile(null);
+            imageLabel.showPlaceholder();
+            setTitle(TITLE);
+            return;
+        }
+        if (imageIndex < 0) {
+            // The folder was empty until now
+            stepImage(true);
+            updateCache();
+            if (!listedFolders.isEmpty()) readMetadata();
+            return;
+        }
+
+        imageIndex = visibleId >= 0 ? catalog.getPosition(visibleId) : Math.min(visiblePosition, catalog.size() - 1);
+        if (!listedFolders.isEmpty()) readMetadata();
+        if (visibleChanged) showImage();
+        updateTitle();
+        // The cache window is based on positions, so it has to be moved if images were inserted or removed before the visible one
+        followVisibleImage();
+    }
+
+    /**
+     * @param deletedIds The ids of the images deleted in the same batch
+     * @param change The created image
+     * @return The id of the deleted image in the same folder with the same size and modification time, or -1 if there is none
+     */
+    private int findRenamedImage(List<Integer> deletedIds, FolderWatcher.Change change) {
+        for (int id : deletedIds) {
+            if (catalog.getFolder(id).equals(change.getFolder()) && catalog.getSize(id) == change.getSize()
+                    && catalog.getModifiedTime(id) == change.getModifiedTime()) return id;
+        }
+        return -1;
+    }
+
+    /**
+     * Sorts the images by the current sort order setting
+     * If the folder is still being loaded, the loader sorts the images by the new setting once it's finished
+     */
+    private void sortImages() {
+        if (catalog == null || !catalog.isComplete()) return;
+
+        ImageCatalog sortedCatalog = catalog;
+        ImageCatalog.SortKey sortKey = PreferenceManager.getSortKey();
+        int changeCount = catalog.getChangeCount();
+        if (sortKey != ImageCatalog.SortKey.CAPTURE_DATE) {
+            applyOrder(catalog.getSortedOrder(sortKey));
+            return;
+        }
+
+        // Capture dates are read with the rest of the metadata in the background after loading, but sorting can't wait for that
+        if (sortWorker != null) sortWorker.cancel(false);
+        sortWorker = new SwingWorker<int[], Void>() {
+            @Override
+            protected int[] doInBackground() {
+                FolderLoader.readMetadata(sortedCatalog, new int[0], this::isCancelled);
+                if (isCancelled()) return null;
+                return sortedCatalog.getSortedOrder(sortKey);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    if (isCancelled() || sortedCatalog != catalog || sortKey != PreferenceManager.getSortKey()) return;
+                    // Sort again if the folder watcher added or removed images while the capture dates were being read
+                    if (changeCount == catalog.getChangeCount()) applyOrder(get());
+                    else sortImages();
+                } catch (InterruptedException | ExecutionException e) {
+                    System.err.println("Sorting failed: " + e.getCause());
+                }
+            }
+        };
+        sortWorker.execute();
+    }
 
-        Arrays.sort(images, Comparator.comparingLong(File::lastModified));
+    /**
+     * Reads the metadata of the images that don't have it yet from the headers of their files in the background,
+     * so that their dimensions, orientation and capture date are known before they get decoded
+     */
+    private void readMetadata() {
+        if (metadataWorker != null) metadataWorker.cancel(false);
+        ImageCatalog loadedCatalog = catalog;
+        int[] firstIds = getMetadataPriorityIds();
+        metadataWorker = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                // Cancelled when another folder gets selected
+                FolderLoader.readMetadata(loadedCatalog, firstIds, this::isCancelled);
+                return null;
+            }
+        };
+        metadataWorker.execute();
+    }
 
-        for (File f : images) {
-            imageNames.add(f.getName());
-            imageFolders.add("");
-            System.out.println(f.getName());
+    /**
+     * @return The ids of the images around the visible one, nearest first, whose metadata should be read before the rest
+     */
+    private int[] getMetadataPriorityIds() {
+        if (imageIndex < 0) return new int[0];
+        int radius = Math.max(cacheRadius, METADATA_PRIORITY_RADIUS);
+        int[] ids = new int[radius * 2 + 1];
+        int count = 0;
+        ids[count++] = catalog.getId(imageIndex);
+        for (int distance = 1; distance <= radius; distance++) {
+            if (imageIndex + distance < catalog.size()) ids[count++] = catalog.getId(imageIndex + distance);
+            if (imageIndex - distance >= 0) ids[count++] = catalog.getId(imageIndex - distance);
         }
+        return Arrays.copyOf(ids, count);
+    }
 
-        imageFolders.addAll(Collections.nCopies(imageNames.size(), ""));
+    /**
+     * Sorts the catalog, keeping the currently visible image visible
+     *
+     * @param order The ids of all images in their new order
+     */
+    private void applyOrder(int[] order) {
+        int visibleId = imageIndex >= 0 ? catalog.getId(imageIndex) : -1;
+        catalog.setOrder(order);
+        if (visibleId < 0) return;
+
+        imageIndex = catalog.getPosition(visibleId);
+        // The cache window is based on positions, so it has to be moved to the new neighbours of the visible image
+        followVisibleImage();
+    }
 
-        imageCache = new ImageCacheManager(imageNames, imageFolders, workFolder, cacheProgressBar);
-        if (cacheImages) imageCache.executeTask();
+    /**
+     * Moves the pre-rendered frames to the neighbours of the visible image,
+     * and the cache window too if the images around the visible one are cached
+     */
+    private void followVisibleImage() {
+        if (imageCache == null || imageIndex < 0) return;
+        imageCache.setVisibleIndex(imageIndex);
+        if (cacheImages && cacheRadius > 0) imageCache.updateWindow(imageIndex);
+    }
 
-        // Initial step from -1 to 0 position
-        stepImage(true);
+    /**
+     * Applies the current caching settings to the image cache
+     * With a non-zero radius only the images around the visible one are decoded, otherwise the whole folder gets decoded
+     * (if the encoded cache is enabled, the contents of the whole folder are also read into memory in both cases)
+     */
+    private void updateCache() {
+        if (!cacheImages || imageCache == null) return;
+        imageCache.setCacheRadius(cacheRadius);
+        followVisibleImage();
+        if (cacheRadius == 0 || imageCache.isEncodedCacheEnabled()) imageCache.executeTask();
     }
 
     /**
@@ -212,7 +575,7 @@ public class ImageOrganizer extends JFrame implements KeyEventDispatcher {
     private void stepImage(boolean direction) {
         // Calculate new index
         if (direction) {
-            if (imageNames.size() > imageIndex + 1) imageIndex++;
+            if (catalog.size() > imageIndex + 1) imageIndex++;
             else return;
         } else {
             if (imageIndex > 0) imageIndex--;
@@ -220,15 +583,68 @@ public class ImageOrganizer extends JFrame implements KeyEventDispatcher {
         }
 
         // Request new image and set it as the icon for the label
+        // While the user is skimming through the images quickly, only cached images are shown, and nothing gets requested until the user stops
+        long time = System.currentTimeMillis();
+        boolean coalesce = time - lastStepTime < stepInterval;
+        lastStepTime = time;
         if (imageCache != null) {
-            //imageLabel.setIcon(imageCache.requestImage(imageIndex, 1600, 900));
-            imageLabel.setImage(imageCache.requestRawImage(imageIndex));
+            followVisibleImage();
+            if (coalesce) {
+                showCachedImage();
+                stepTimer.restart();
+            } else {
+                stepTimer.stop();
+                showImage();
+            }
             System.out.println("Stepped to image #" + imageIndex + "!");
         }
 
         updateTitle();
     }
 
+    /**
+     * Requests the image at the current index and displays it
+     * If the image is not cached yet, its embedded thumbnail or a placeholder is shown until it is loaded
+     */
+    private void showImage() {
+        int requestedIndex = imageIndex;
+        // The position of the image can change while it's loading (the folder gets sorted, or the watcher inserts or removes images before it),
+        // so the results are matched to the visible image by id
+        int requestedId = catalog.getId(requestedIndex);
+        shownId = requestedId;
+        setLabelImageFile(requestedIndex);
+        BufferedImage image = imageCache.requestRawImageAsync(requestedIndex, loadedImage -> {
+            if (!isCurrentImage(requestedId)) return;
+            // Decoding the image stored its dimensions in the catalog, if they weren't known yet
+            setLabelImageFile(imageIndex);
+            imageLabel.setImage(loadedImage, imageCache.getFrame(imageIndex));
+        }, thumbnail -> {
+            if (isCurrentImage(requestedId)) imageLabel.setPreviewImage(thumbnail);
+        });
+        if (image != null) imageLabel.setImage(image, imageCache.getFrame(requestedIndex));
+        else imageLabel.showPlaceholder();
+    }
+
+    /**
+     * @param id The id of an image
+     * @return True if the image is at the current index, and the label is showing it (or its placeholder)
+     */
+    private boolean isCurrentImage(int id) {
+        return shownId == id && imageIndex >= 0 && imageIndex < catalog.size() && catalog.getId(imageIndex) == id;
+    }
+
+    /**
+     * Displays the image at the current index if it's already cached (at any resolution), without requesting it otherwise
+     * If it's not cached, the previous image stays visible
+     */
+    private void showCachedImage() {
+        BufferedImage image = imageCache.peekImage(imageIndex);
+        if (image == null) return;
+        shownId = catalog.getId(imageIndex);
+        setLabelImageFile(imageIndex);
+        imageLabel.setImage(image, imageCache.getFrame(imageIndex));
+    }
+
     private void keyBindConfig() {
         if (keyBindWindowVisible.get()) {
             if (configWindow != null) configWindow.requestFocus();
@@ -240,34 +656,47 @@ public class ImageOrganizer extends JFrame implements KeyEventDispatcher {
 
     private void moveImage(String destFolder) {
         if (destFolder.isEmpty()) return;
+        if (catalog.getId(imageIndex) != shownId) {
+            // The previous image is still shown while skimming, so the image at the current index is shown first instead of moving it unseen
+            stepTimer.stop();
+            showImage();
+            return;
+        }
         File destDir = new File(workFolder + File.separator + destFolder);
         if (!destDir.exists()) if (!destDir.mkdirs()) System.err.println("Failed to create dirs for image move!");
 
-        File currentImage;
-        if (imageFolders.get(imageIndex).isEmpty()) {
-            currentImage = new File(workFolder + File.separator + imageNames.get(imageIndex));
-        } else {
-            currentImage = new File(workFolder + File.separator + imageFolders.get(imageIndex) + File.separator + imageNames.get(imageIndex));
-        }
-
-        if (!currentImage.renameTo(new File(destDir.getPath() + File.separator + imageNames.get(imageIndex)))) {
+        int id = catalog.getId(imageIndex);
+        File currentImage = catalog.getFile(id);
+        if (!currentImage.renameTo(new File(destDir.getPath() + File.separator + catalog.getName(id)))) {
             System.err.println("Failed to move image!");
         } else {
-            imageFolders.set(imageIndex, destFolder);
+            catalog.setFolder(id, destFolder);
+            setLabelImageFile(imageIndex);
             updateTitle();
         }
     }
 
+    /**
+     * Sets the file of an image on the label, along with its dimensions if they are already known, which are needed for zooming into it
+     *
+     * @param index The position of the image in the catalog
+     */
+    private void setLabelImageFile(int index) {
+        int id = catalog.getId(index);
+        imageLabel.setImageFile(catalog.getFile(id), catalog.getWidth(id), catalog.getHeight(id));
+    }
+
     private void updateTitle() {
         // Display new image name and folder in the title
         String format = "%s - %s";
-        if (!imageFolders.get(imageIndex).isEmpty()) format += " - Moved to %s";
-        setTitle(String.format(format, TITLE, imageNames.get(imageIndex), imageFolders.get(imageIndex)));
+        int id = catalog.getId(imageIndex);
+        if (!catalog.getFolder(id).isEmpty()) format += " - Moved to %s";
+        setTitle(String.format(format, TITLE, catalog.getName(id), catalog.getFolder(id)));
     }
 
     @Override
     public boolean dispatchKeyEvent(KeyEvent e) {
-        if (e.getID() != KeyEvent.KEY_PRESSED || !isFocused() || imageNames.size() < 1) return false;
+        if (e.getID() != KeyEvent.KEY_PRESSED || !isFocused() || catalog == null || catalog.size() < 1) return false;
 
         // TODO Implement some kind of way to delete images (either to the recycle bin or a trash folder)
 
@@ -12,6 +12,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class PreferenceManager {
 
@@ -22,6 +23,46 @@ public class PreferenceManager {
     public final static String KEYBIND_ROOT_NODE_NAME = "KeyBinds";
     public final static String KEYBIND_NODE_NAME = "KeyBind";
 
+    public final static File SETTINGS_CONFIG_FILE = new File(APP_DIRECTORY_NAME + "/settings.xml");
+    public final static String SETTINGS_ROOT_NODE_NAME = "Settings";
+    public final static String SETTING_NODE_NAME = "Setting";
+
+    public final static String CACHE_RADIUS_SETTING = "cacheRadius";
+    public final static int DEFAULT_CACHE_RADIUS = 10;
+    public final static String CACHE_BUDGET_SETTING = "cacheBudgetMB";
+    public final static int DEFAULT_CACHE_BUDGET_MB = (int) Math.min(1536, Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024));
+
+    public final static String OFF_HEAP_CACHE_BUDGET_SETTING = "offHeapCacheBudgetMB";
+    public final static int DEFAULT_OFF_HEAP_CACHE_BUDGET_MB = 0;
+    public final static String ENCODED_CACHE_BUDGET_SETTING = "encodedCacheBudgetMB";
+    public final static int DEFAULT_ENCODED_CACHE_BUDGET_MB = 0;
+    public final static String DECODE_AT_DISPLAY_SIZE_SETTING = "decodeAtDisplaySize";
+    public final static boolean DEFAULT_DECODE_AT_DISPLAY_SIZE = true;
+
+    public final static String PREVIEW_CACHE_SETTING = "previewCache";
+    public final static boolean DEFAULT_PREVIEW_CACHE = true;
+    public final static String PREVIEW_CACHE_SIZE_SETTING = "previewCacheSizeMB";
+    public final static int DEFAULT_PREVIEW_CACHE_SIZE_MB = 1024;
+
+    public final static String EMBEDDED_THUMBNAILS_SETTING = "embeddedThumbnails";
+    public final static boolean DEFAULT_EMBEDDED_THUMBNAILS = true;
+
+    public final static String LOAD_SUBFOLDERS_SETTING = "loadSubfolders";
+    public final static boolean DEFAULT_LOAD_SUBFOLDERS = false;
+    public final static String SUBFOLDER_DEPTH_SETTING = "subfolderDepth";
+    public final static int DEFAULT_SUBFOLDER_DEPTH = 1;
+
+    public final static String FOLDER_INDEX_SETTING = "folderIndex";
+    public final static boolean DEFAULT_FOLDER_INDEX = true;
+
+    public final static String SORT_ORDER_SETTING = "sortOrder";
+    public final static ImageCatalog.SortKey DEFAULT_SORT_ORDER = ImageCatalog.SortKey.MODIFIED;
+
+    public final static String INTERACTIVE_STEP_INTERVAL_SETTING = "interactiveStepIntervalMS";
+    public final static int DEFAULT_INTERACTIVE_STEP_INTERVAL_MS = 150;
+    public final static String IDLE_RENDER_DELAY_SETTING = "idleRenderDelayMS";
+    public final static int DEFAULT_IDLE_RENDER_DELAY_MS = 200;
+
     private final static List<String> INITIAL_XML_LINES = Arrays.asList(
             "<root>",
             "    <KeyBinds>",
@@ -29,45 +70,52 @@ public class PreferenceManager {
             "    </KeyBinds>",
             "</root>");
 
+    private final static List<String> INITIAL_SETTINGS_XML_LINES = Arrays.asList(
+            "<root>",
+            "    <Settings>",
+            "    </Settings>",
+            "</root>");
+
     private static KeyBindMap keyBindMap = new KeyBindMap();
+    private final static Map<String, String> settings = new HashMap<>();
 
     static {
-        AtomicBoolean docNeedsRepair = new AtomicBoolean(false);
-
         // Create app dir if it doesnt exist
         if (!APP_DIRECTORY.exists()) APP_DIRECTORY.mkdir();
 
+        loadConfigFile(KEYBIND_CONFIG_FILE, INITIAL_XML_LINES, KEYBIND_ROOT_NODE_NAME, PreferenceManager::loadKeyBinds);
+        loadConfigFile(SETTINGS_CONFIG_FILE, INITIAL_SETTINGS_XML_LINES, SETTINGS_ROOT_NODE_NAME, PreferenceManager::loadSettings);
+    }
+
+    private static void loadConfigFile(File configFile, List<String> initialLines, String rootNodeName, Consumer<NodeList> loader) {
+        AtomicBoolean docNeedsRepair = new AtomicBoolean(false);
+
         // Create config file if it doesnt exist
-        if (!KEYBIND_CONFIG_FILE.exists()) {
-            Path file = KEYBIND_CONFIG_FILE.toPath();
+        if (!configFile.exists()) {
+            Path file = configFile.toPath();
             try {
-                Files.write(file, INITIAL_XML_LINES, StandardCharsets.UTF_8);
+                Files.write(file, initialLines, StandardCharsets.UTF_8);
             } catch (IOException e) {
                 System.err.println("Error occurred while writing initial config file!");
                 e.printStackTrace();
             }
         }
 
-        // Try reading the config file and load the keybinds
-        XmlParser.XmlParseResult result = XmlParser.viewXml(KEYBIND_CONFIG_FILE.getPath(), (doc, nodes) -> {
-            if (nodes.getNodes(KEYBIND_ROOT_NODE_NAME).size() > 0) loadKeyBinds(nodes);
+        // Try reading the config file and load its contents
+        XmlParser.XmlParseResult result = XmlParser.viewXml(configFile.getPath(), (doc, nodes) -> {
+            if (nodes.getNodes(rootNodeName).size() > 0) loader.accept(nodes);
             else docNeedsRepair.set(true);
         });
 
         if (result != XmlParser.XmlParseResult.SUCCESS || docNeedsRepair.get()) {
-            System.out.println("Error occurred while loading keybinds, attempting to repair the config file...");
-            XmlParser.editXml(KEYBIND_CONFIG_FILE.getPath(), (doc, nodes) -> {
-                if (nodes.getNodes(KEYBIND_ROOT_NODE_NAME).size() > 0) {
-                    loadKeyBinds(nodes);
+            System.out.println("Error occurred while loading " + configFile.getName() + ", attempting to repair the config file...");
+            XmlParser.editXml(configFile.getPath(), (doc, nodes) -> {
+                if (nodes.getNodes(rootNodeName).size() > 0) {
+                    loader.accept(nodes);
                     return false;
                 } else {
-                    Element keyBinds = doc.createElement(KEYBIND_ROOT_NODE_NAME);
-
-                    /*Element exampleKeyBind = doc.createElement(KEYBIND_NODE_NAME);
-                    exampleKeyBind.setAttribute("code", String.valueOf(69));
-                    exampleKeyBind.appendChild(doc.createTextNode("Example"));*/
-
-                    doc.getDocumentElement().appendChild(keyBinds);
+                    Element rootNode = doc.createElement(rootNodeName);
+                    doc.getDocumentElement().appendChild(rootNode);
                     return true;
                 }
             });
@@ -84,6 +132,16 @@ public class PreferenceManager {
         }
     }
 
+    private static void loadSettings(NodeList nodes) {
+        Node settingsNode = nodes.getNode(SETTINGS_ROOT_NODE_NAME);
+        NodeList settingList = settingsNode.getNodes(SETTING_NODE_NAME);
+
+        for (Node setting : settingList) {
+            settings.put(setting.getNodeAttributeContent("name"), setting.getTextContent());
+            System.out.println(String.format("Loaded Setting(%s, %s)", setting.getNodeAttributeContent("name"), setting.getTextContent()));
+        }
+    }
+
     private PreferenceManager() {
 
     }
@@ -136,4 +194,158 @@ public class PreferenceManager {
             return true;
         });
     }
+
+    public static int getCacheRadius() {
+        return getIntSetting(CACHE_RADIUS_SETTING, DEFAULT_CACHE_RADIUS);
+    }
+
+    public static void setCacheRadius(int radius) {
+        setSetting(CACHE_RADIUS_SETTING, radius);
+    }
+
+    /**
+     * The budget settings are edited by hand in the settings file, so negative values are treated as 0, which disables the cache
+     *
+     * @return The maximum amount of memory in bytes that decoded images in the cache may use, or 0 if decoded images shouldn't be cached
+     */
+    public static long getCacheBudget() {
+        return Math.max(0, getIntSetting(CACHE_BUDGET_SETTING, DEFAULT_CACHE_BUDGET_MB)) * 1024L * 1024L;
+    }
+
+    /**
+     * @return The maximum amount of direct memory in bytes that cached images may use outside of the heap, or 0 if the off-heap cache is disabled
+     */
+    public static long getOffHeapCacheBudget() {
+        return Math.max(0, getIntSetting(OFF_HEAP_CACHE_BUDGET_SETTING, DEFAULT_OFF_HEAP_CACHE_BUDGET_MB)) * 1024L * 1024L;
+    }
+
+    /**
+     * @return The maximum amount of memory in bytes that the encoded contents of image files may use, or 0 if the encoded cache is disabled
+     */
+    public static long getEncodedCacheBudget() {
+        return Math.max(0, getIntSetting(ENCODED_CACHE_BUDGET_SETTING, DEFAULT_ENCODED_CACHE_BUDGET_MB)) * 1024L * 1024L;
+    }
+
+    /**
+     * @return True if images should be decoded at a reduced resolution that is still enough to display them
+     */
+    public static boolean isDecodeAtDisplaySize() {
+        return getBooleanSetting(DECODE_AT_DISPLAY_SIZE_SETTING, DEFAULT_DECODE_AT_DISPLAY_SIZE);
+    }
+
+    /**
+     * @return True if screen sized previews of the images should be stored on disk, which is turned off by a size of 0 too
+     */
+    public static boolean isPreviewCacheEnabled() {
+        return getBooleanSetting(PREVIEW_CACHE_SETTING, DEFAULT_PREVIEW_CACHE) && getPreviewCacheSize() > 0;
+    }
+
+    /**
+     * @return The maximum size of the preview pack file in bytes, or 0 if previews shouldn't be stored
+     */
+    public static long getPreviewCacheSize() {
+        return Math.max(0, getIntSetting(PREVIEW_CACHE_SIZE_SETTING, DEFAULT_PREVIEW_CACHE_SIZE_MB)) * 1024L * 1024L;
+    }
+
+    /**
+     * @return True if the thumbnails embedded in image files should be shown while the images are being decoded
+     */
+    public static boolean isEmbeddedThumbnailsEnabled() {
+        return getBooleanSetting(EMBEDDED_THUMBNAILS_SETTING, DEFAULT_EMBEDDED_THUMBNAILS);
+    }
+
+    /**
+     * @return True if the images in the subfolders of the selected folder (like the ones moved there earlier) should be loaded as well
+     */
+    public static boolean isLoadSubfoldersEnabled() {
+        return getBooleanSetting(LOAD_SUBFOLDERS_SETTING, DEFAULT_LOAD_SUBFOLDERS);
+    }
+
+    public static void setLoadSubfoldersEnabled(boolean enabled) {
+        setSetting(LOAD_SUBFOLDERS_SETTING, enabled);
+    }
+
+    /**
+     * @return The number of subfolder levels that are loaded if loading subfolders is enabled, at least 1
+     */
+    public static int getSubfolderDepth() {
+        return Math.max(1, getIntSetting(SUBFOLDER_DEPTH_SETTING, DEFAULT_SUBFOLDER_DEPTH));
+    }
+
+    /**
+     * @return True if the contents of opened folders should be stored in an index, so that they can be reopened without listing them again
+     */
+    public static boolean isFolderIndexEnabled() {
+        return getBooleanSetting(FOLDER_INDEX_SETTING, DEFAULT_FOLDER_INDEX);
+    }
+
+    /**
+     * @return The attribute the images of the selected folder are sorted by
+     */
+    public static ImageCatalog.SortKey getSortKey() {
+        ImageCatalog.SortKey key = ImageCatalog.SortKey.fromSettingValue(settings.get(SORT_ORDER_SETTING));
+        return key != null ? key : DEFAULT_SORT_ORDER;
+    }
+
+    public static void setSortKey(ImageCatalog.SortKey key) {
+        setSetting(SORT_ORDER_SETTING, key.getSettingValue());
+    }
+
+    /**
+     * @return The interval in milliseconds under which consecutive images are considered fast navigation,
+     * in which case the steps are coalesced, and the images are drawn with the fast render quality
+     */
+    public static int getInteractiveStepInterval() {
+        return Math.max(0, getIntSetting(INTERACTIVE_STEP_INTERVAL_SETTING, DEFAULT_INTERACTIVE_STEP_INTERVAL_MS));
+    }
+
+    /**
+     * @return The time in milliseconds that navigation has to be idle for, before the image is drawn with the high render quality
+     */
+    public static int getIdleRenderDelay() {
+        return Math.max(0, getIntSetting(IDLE_RENDER_DELAY_SETTING, DEFAULT_IDLE_RENDER_DELAY_MS));
+    }
+
+    private static boolean getBooleanSetting(String name, boolean defaultValue) {
+        String value = settings.get(name);
+        if (value == null) return defaultValue;
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    private static int getIntSetting(String name, int defaultValue) {
+        String value = settings.get(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for setting " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static void setSetting(String name, Object value) {
+        String prevValue = settings.put(name, String.valueOf(value));
+        if (!String.valueOf(value).equals(prevValue)) saveSettingsToDisk();
+    }
+
+    private static void saveSettingsToDisk() {
+        XmlParser.editXml(SETTINGS_CONFIG_FILE.getPath(), (doc, nodes) -> {
+            if (nodes.getNodes(SETTINGS_ROOT_NODE_NAME).size() > 0) {
+                org.w3c.dom.Node node = nodes.getNode(SETTINGS_ROOT_NODE_NAME).getNode();
+                node.getParentNode().removeChild(node);
+            }
+
+            Element settingsNode = doc.createElement(SETTINGS_ROOT_NODE_NAME);
+
+            for (Map.Entry<String, String> entry : settings.entrySet()) {
+                Element setting = doc.createElement(SETTING_NODE_NAME);
+                setting.setAttribute("name", entry.getKey());
+                setting.appendChild(doc.createTextNode(entry.getValue()));
+                settingsNode.appendChild(setting);
+            }
+
+            doc.getDocumentElement().appendChild(settingsNode);
+            return true;
+        });
+    }
 }
@@ -0,0 +1,246 @@
+package net.gabor6505.imageorganizer.cache;
+
+import net.gabor6505.imageorganizer.ImageCatalog;
+import net.gabor6505.imageorganizer.PreferenceManager;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent index of the images in a folder, stored in the app directory, so that reopening a huge folder doesn't have to list it again
+ * <br><br>
+ * The index stores the name, size, modification time and header metadata (dimensions, orientation and capture date) of every image,
+ * grouped by the subfolder they are in,
+ * along with the modification time of every folder.
+ * When the folder is reopened, the index is read with a single sequential read,
+ * and only the folders whose modification time changed since then have to be listed again
+ * (the modification time of a folder changes whenever a file is created, deleted or renamed in it)
+ * <br>
+ * Files that were only overwritten in place while the folder wasn't open keep their indexed size and modification time
+ * until their folder is listed again, they are still decoded from their current contents
+ */
+public class FolderIndex {
+
+    public final static File INDEX_DIRECTORY = new File(PreferenceManager.APP_DIRECTORY_NAME + "/indexes");
+
+    private final static int INDEX_MAGIC = 0x494F4649;
+    private final static int INDEX_VERSION = 2;
+
+    private final Map<String, IndexedFolder> folders;
+
+    private FolderIndex(Map<String, IndexedFolder> folders) {
+        this.folders = folders;
+    }
+
+    /**
+     * Reads the index of a folder
+     *
+     * @param workFolder The folder the images are loaded from
+     * @param depth The number of subfolder levels the images are loaded from, the index is only used if it was made with the same depth
+     * @return The index of the folder, or null if there is none
+     */
+    public static FolderIndex load(String workFolder, int depth) {
+        File indexFile = getIndexFile(workFolder);
+        if (!indexFile.exists()) return null;
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(indexFile.toPath())))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                System.err.println("Folder index has an unknown format, ignoring it.");
+                return null;
+            }
+            if (!in.readUTF().equals(workFolder) || in.readInt() != depth) return null;
+
+            int folderCount = in.readInt();
+            Map<String, IndexedFolder> folders = new HashMap<>(folderCount * 2);
+            for (int i = 0; i < folderCount; i++) {
+                IndexedFolder folder = new IndexedFolder(in.readLong(), in.readInt());
+                String path = in.readUTF();
+                for (int j = 0; j < folder.names.length; j++) {
+                    folder.names[j] = in.readUTF();
+                    folder.sizes[j] = in.readLong();
+                    folder.modifiedTimes[j] = in.readLong();
+                    folder.widths[j] = in.readInt();
+                    folder.heights[j] = in.readInt();
+                    folder.orientations[j] = in.readByte();
+                    folder.captureTimes[j] = in.readLong();
+                }
+                folders.put(path, folder);
+            }
+
+            for (Map.Entry<String, IndexedFolder> entry : folders.entrySet()) {
+                String path = entry.getKey();
+                if (path.isEmpty()) continue;
+                IndexedFolder parent = folders.get(getParent(path));
+                if (parent != null) parent.subfolders.add(path);
+            }
+            return new FolderIndex(folders);
+        } catch (IOException e) {
+            System.err.println("Error occurred while reading the folder index, listing the folder instead!");
+            return null;
+        }
+    }
+
+    /**
+     * Writes the images in the display order of the catalog into the index of its work folder
+     * Images that are not in any of the specified folders are left out
+     *
+     * @param catalog The catalog of the images
+     * @param depth The number of subfolder levels the images were loaded from
+     * @param folderTimes The modification times of the folders the images were loaded from, by their path relative to the work folder
+     */
+    public static void save(ImageCatalog catalog, int depth, Map<String, Long> folderTimes) {
+        Map<String, List<Integer>> folderImages = new HashMap<>();
+        for (String folder : folderTimes.keySet()) folderImages.put(folder, new ArrayList<>());
+        for (int i = 0; i < catalog.size(); i++) {
+            int id = catalog.getId(i);
+            List<Integer> images = folderImages.get(catalog.getFolder(id));
+            if (images != null) images.add(id);
+        }
+
+        if (!INDEX_DIRECTORY.exists() && !INDEX_DIRECTORY.mkdirs()) {
+            System.err.println("Failed to create the folder index directory!");
+            return;
+        }
+        File indexFile = getIndexFile(catalog.getWorkFolder());
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(catalog.getWorkFolder());
+            out.writeInt(depth);
+            out.writeInt(folderImages.size());
+            for (Map.Entry<String, List<Integer>> entry : folderImages.entrySet()) {
+                out.writeLong(folderTimes.get(entry.getKey()));
+                out.writeInt(entry.getValue().size());
+                out.writeUTF(entry.getKey());
+                for (int id : entry.getValue()) {
+                    out.writeUTF(catalog.getName(id));
+                    out.writeLong(catalog.getSize(id));
+                    out.writeLong(catalog.getModifiedTime(id));
+                    out.writeInt(catalog.getWidth(id));
+                    out.writeInt(catalog.getHeight(id));
+                    out.writeByte(catalog.getOrientation(id));
+                    out.writeLong(catalog.getCaptureTime(id));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error occurred while saving the folder index!");
+            return;
+        }
+
+        try {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Error occurred while saving the folder index!");
+        }
+    }
+
+    /**
+     * @param folder The path of the folder relative to the work folder, or an empty string for the work folder itself
+     * @return The indexed contents of the folder, or null if it's not in the index
+     */
+    public IndexedFolder getFolder(String folder) {
+        return folders.get(folder);
+    }
+
+    private static String getParent(String folder) {
+        int separatorIndex = folder.lastIndexOf(File.separatorChar);
+        return separatorIndex < 0 ? "" : folder.substring(0, separatorIndex);
+    }
+
+    private static File getIndexFile(String workFolder) {
+        // The path of the work folder is stored in the index too, in case two folders have the same hash
+        return new File(INDEX_DIRECTORY, String.format("%08x.idx", new File(workFolder).getAbsolutePath().hashCode()));
+    }
+
+    /**
+     * The images of a single folder in the index
+     */
+    public static class IndexedFolder {
+
+        private final long modifiedTime;
+        private final List<String> subfolders = new ArrayList<>();
+        private final String[] names;
+        private final long[] sizes;
+        private final long[] modifiedTimes;
+        private final int[] widths;
+        private final int[] heights;
+        private final byte[] orientations;
+        private final long[] captureTimes;
+
+        private IndexedFolder(long modifiedTime, int imageCount) {
+            this.modifiedTime = modifiedTime;
+            names = new String[imageCount];
+            sizes = new long[imageCount];
+            modifiedTimes = new long[imageCount];
+            widths = new int[imageCount];
+            heights = new int[imageCount];
+            orientations = new byte[imageCount];
+            captureTimes = new long[imageCount];
+        }
+
+        /**
+         * @return The modification time of the folder when it was indexed
+         */
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+
+        /**
+         * @return The paths of the subfolders of this folder relative to the work folder
+         */
+        public List<String> getSubfolders() {
+            return subfolders;
+        }
+
+        public int getImageCount() {
+            return names.length;
+        }
+
+        public String getImageName(int index) {
+            return names[index];
+        }
+
+        public long getImageSize(int index) {
+            return sizes[index];
+        }
+
+        public long getImageModifiedTime(int index) {
+            return modifiedTimes[index];
+        }
+
+        /**
+         * @return The width of the image, or 0 if it wasn't known when the folder was indexed
+         */
+        public int getImageWidth(int index) {
+            return widths[index];
+        }
+
+        /**
+         * @return The height of the image, or 0 if it wasn't known when the folder was indexed
+         */
+        public int getImageHeight(int index) {
+            return heights[index];
+        }
+
+        /**
+         * @return The EXIF orientation of the image, or 0 if its metadata wasn't read when the folder was indexed
+         */
+        public int getImageOrientation(int index) {
+            return orientations[index];
+        }
+
+        /**
+         * @return The capture time of the image, -1 if it doesn't have one,
+         * or {@link ImageCatalog#CAPTURE_TIME_UNKNOWN} if it wasn't read when the folder was indexed
+         */
+        public long getImageCaptureTime(int index) {
+            return captureTimes[index];
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.gabor6505.imageorganizer.cache;
+
+/**
+ * Keeps track of the direction and speed the user is stepping through the images with
+ */
+public class NavigationTracker {
+
+    private final static long IDLE_RESET_MILLIS = 1000;
+    private final static float SMOOTHING = 0.5f;
+
+    private int lastIndex = -1;
+    private long lastStepTime = 0;
+    private int direction = 0;
+    private float velocity = 0;
+
+    /**
+     * Records a step to the specified index
+     *
+     * @param index The index that was stepped to
+     * @param time  The time of the step in milliseconds
+     */
+    public synchronized void recordStep(int index, long time) {
+        if (lastIndex != -1 && index != lastIndex) {
+            int stepDirection = Integer.signum(index - lastIndex);
+            long elapsed = Math.max(1, time - lastStepTime);
+
+            if (stepDirection != direction || elapsed > IDLE_RESET_MILLIS) {
+                velocity = 0;
+            } else {
+                float stepVelocity = Math.abs(index - lastIndex) * 1000f / elapsed;
+                velocity = velocity == 0 ? stepVelocity : velocity + SMOOTHING * (stepVelocity - velocity);
+            }
+            direction = stepDirection;
+        }
+        lastIndex = index;
+        lastStepTime = time;
+    }
+
+    /**
+     * @return The direction of the last step, 1 for right, -1 for left, or 0 if there was no step yet
+     */
+    public synchronized int getDirection() {
+        return direction;
+    }
+
+    /**
+     * @param time The current time in milliseconds
+     * @return The smoothed speed of stepping in images per second, or 0 if the user has been idle for a while
+     */
+    public synchronized float getVelocity(long time) {
+        if (time - lastStepTime > IDLE_RESET_MILLIS) return 0;
+        return velocity;
+    }
+}
@@ -0,0 +1,102 @@
+package net.gabor6505.imageorganizer.cache;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+
+/**
+ * The pixels of an image stored outside of the Java heap, in a direct buffer
+ * <br><br>
+ * Pixels are stored with as few bytes as possible: 1 byte for gray images, 3 bytes (BGR) for opaque images,
+ * and 4 bytes (ABGR) only for images with an alpha channel
+ * <br>
+ * The memory of the buffer is only released once the PackedImage itself is garbage collected
+ */
+public class PackedImage {
+
+    private final ByteBuffer pixels;
+    private final int width;
+    private final int height;
+    private final int imageType;
+
+    private PackedImage(ByteBuffer pixels, int width, int height, int imageType) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.imageType = imageType;
+    }
+
+    /**
+     * Copies the pixels of the specified image into a new direct buffer
+     *
+     * @param image The image to pack
+     * @return The packed image
+     * @throws OutOfMemoryError If there is not enough direct memory for the buffer
+     */
+    public static PackedImage pack(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_BYTE_GRAY && type != BufferedImage.TYPE_3BYTE_BGR && type != BufferedImage.TYPE_4BYTE_ABGR) {
+            type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR;
+            image = convert(image, type);
+        }
+
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        if (data.length != image.getWidth() * image.getHeight() * getChannels(type)) {
+            // The raster is a view of a bigger buffer, copy it into a buffer of its own first
+            image = convert(image, type);
+            data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        }
+
+        ByteBuffer pixels = ByteBuffer.allocateDirect(data.length);
+        pixels.put(data);
+        pixels.flip();
+        return new PackedImage(pixels, image.getWidth(), image.getHeight(), type);
+    }
+
+    /**
+     * Copies the pixels back into a new image on the heap
+     *
+     * @return The unpacked image
+     */
+    public BufferedImage unpack() {
+        BufferedImage image = new BufferedImage(width, height, imageType);
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        pixels.duplicate().get(data);
+        return image;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The size of the direct buffer holding the pixels in bytes
+     */
+    public long getSize() {
+        return pixels.capacity();
+    }
+
+    private static int getChannels(int type) {
+        switch (type) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return 1;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    private static BufferedImage convert(BufferedImage image, int type) {
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+}
@@ -0,0 +1,78 @@
+package net.gabor6505.imageorganizer.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how many of the prefetched images were viewed, grouped by the distance they were prefetched at
+ */
+public class PrefetchStats {
+
+    public final static int MAX_DISTANCE = 64;
+
+    private final AtomicLongArray prefetched = new AtomicLongArray(MAX_DISTANCE + 1);
+    private final AtomicLongArray hits = new AtomicLongArray(MAX_DISTANCE + 1);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Records that an image was prefetched
+     *
+     * @param distance The distance of the image from the visible image at the time it was prefetched
+     */
+    public void recordPrefetch(int distance) {
+        prefetched.incrementAndGet(clampDistance(distance));
+    }
+
+    /**
+     * Records that a prefetched image was viewed while it was still cached
+     *
+     * @param distance The distance the image was prefetched at
+     */
+    public void recordHit(int distance) {
+        hits.incrementAndGet(clampDistance(distance));
+    }
+
+    /**
+     * Records that an image was viewed before it was loaded
+     */
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * @param distance The prefetch distance
+     * @return The ratio of the images prefetched at the distance that were viewed later, or 0 if nothing was prefetched at it
+     */
+    public float getHitRate(int distance) {
+        long prefetchCount = prefetched.get(clampDistance(distance));
+        if (prefetchCount == 0) return 0;
+        return (float) hits.get(clampDistance(distance)) / prefetchCount;
+    }
+
+    public long getHitCount() {
+        long total = 0;
+        for (int i = 0; i <= MAX_DISTANCE; i++) total += hits.get(i);
+        return total;
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private static int clampDistance(int distance) {
+        return Math.max(0, Math.min(MAX_DISTANCE, Math.abs(distance)));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Prefetch stats: %d hit(s), %d miss(es)%n", getHitCount(), getMissCount()));
+        builder.append(String.format("%8s %10s %6s %8s%n", "distance", "prefetched", "hits", "hit rate"));
+        for (int i = 0; i <= MAX_DISTANCE; i++) {
+            if (prefetched.get(i) == 0) continue;
+            String distance = i == MAX_DISTANCE ? MAX_DISTANCE + "+" : String.valueOf(i);
+            builder.append(String.format("%8s %10d %6d %7.1f%%%n", distance, prefetched.get(i), hits.get(i), getHitRate(i) * 100));
+        }
+        return builder.toString();
+    }
+}
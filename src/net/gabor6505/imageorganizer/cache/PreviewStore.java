@@ -0,0 +1,357 @@
+package net.gabor6505.imageorganizer.cache;
+
+import net.gabor6505.imageorganizer.PreferenceManager;
+import net.gabor6505.imageorganizer.image.DecodedImage;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A persistent store of screen sized previews, kept in a single pack file and an index file inside the app directory
+ * <br><br>
+ * Previews are keyed by the absolute path, size and modification time of their original image,
+ * and read through a memory-mapping of the pack file
+ * <br>
+ * The pack file is written like a ring buffer: once it reaches its maximum size, writing continues from its start,
+ * and the previews that get overwritten are dropped from the index.
+ * This way the pack file never has to be truncated or renamed while it is mapped
+ */
+public class PreviewStore {
+
+    public final static File PREVIEW_DIRECTORY = new File(PreferenceManager.APP_DIRECTORY_NAME + "/previews");
+
+    private final static int INDEX_MAGIC = 0x494F5049;
+    private final static int INDEX_VERSION = 1;
+    private final static int RECORD_MAGIC = 0x494F5052;
+    private final static int RECORD_HEADER_SIZE = 16;
+    private final static int INDEX_SAVE_INTERVAL = 32;
+    private final static float JPEG_QUALITY = 0.85f;
+    private final static long MAPPING_STEP = 64L * 1024 * 1024;
+
+    private static PreviewStore instance = null;
+    private static boolean instanceOpened = false;
+
+    private final File packFile;
+    private final File indexFile;
+    private final FileChannel channel;
+    private final long capacity;
+    private final int maxWidth;
+    private final int maxHeight;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final TreeMap<Long, String> entryOffsets = new TreeMap<>();
+    private MappedByteBuffer mappedPack = null;
+    private long writePosition = 0;
+    private int unsavedCount = 0;
+
+    private static class Entry {
+        private final long offset;
+        private final int length;
+        private final long keyHash;
+        private final int width;
+        private final int height;
+        private final int sourceWidth;
+        private final int sourceHeight;
+
+        private Entry(long offset, int length, long keyHash, int width, int height, int sourceWidth, int sourceHeight) {
+            this.offset = offset;
+            this.length = length;
+            this.keyHash = keyHash;
+            this.width = width;
+            this.height = height;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+        }
+
+        private long getEnd() {
+            return offset + RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    private PreviewStore(File directory, long capacity, int maxWidth, int maxHeight) throws IOException {
+        this.packFile = new File(directory, "previews.pack");
+        this.indexFile = new File(directory, "previews.idx");
+        this.capacity = Math.min(capacity, Integer.MAX_VALUE);
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+
+        if (!directory.exists() && !directory.mkdirs()) throw new IOException("Failed to create " + directory.getPath());
+        channel = FileChannel.open(packFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        loadIndex();
+    }
+
+    /**
+     * Returns the shared preview store, opening it on the first call
+     *
+     * @return The preview store, or null if it is disabled or could not be opened
+     */
+    public static synchronized PreviewStore getInstance() {
+        if (instanceOpened) return instance;
+        instanceOpened = true;
+        if (!PreferenceManager.isPreviewCacheEnabled()) return null;
+
+        Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+        try {
+            instance = new PreviewStore(PREVIEW_DIRECTORY, PreferenceManager.getPreviewCacheSize(), screenSize.width, screenSize.height);
+            Runtime.getRuntime().addShutdownHook(new Thread(instance::saveIndex, "PreviewStoreShutdown"));
+            System.out.println("Opened preview store with " + instance.entries.size() + " preview(s)");
+        } catch (IOException e) {
+            System.err.println("Error occurred while opening the preview store!");
+            e.printStackTrace();
+        }
+        return instance;
+    }
+
+    /**
+     * @param file The original image file
+     * @return True if a preview is stored for the current version of the file
+     */
+    public synchronized boolean contains(File file) {
+        return entries.containsKey(getKey(file));
+    }
+
+    /**
+     * Reads the stored preview of the specified image file
+     *
+     * @param file The original image file
+     * @return The preview with the size of the original image, or null if there is no preview for the current version of the file
+     */
+    public DecodedImage get(File file) {
+        String key = getKey(file);
+        Entry entry;
+        byte[] data;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) return null;
+            ByteBuffer record = readRecord(entry);
+            if (record == null) {
+                removeEntry(key);
+                return null;
+            }
+            // The record is copied while the lock is held, as a concurrent put can overwrite it in the mapped pack once the writing wraps around
+            data = new byte[record.remaining()];
+            record.get(data);
+        }
+
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+            if (image != null) return new DecodedImage(image, entry.sourceWidth, entry.sourceHeight);
+        } catch (IOException e) {
+            System.err.println("Error occurred while reading preview of " + file.getName() + "!");
+        }
+        synchronized (this) {
+            if (entries.get(key) == entry) removeEntry(key);
+        }
+        return null;
+    }
+
+    /**
+     * Stores a preview of the specified image file, scaled down to fit the screen
+     * If a preview of at least the same size is already stored, nothing happens
+     *
+     * @param file         The original image file
+     * @param image        The decoded image, at full or reduced resolution
+     * @param sourceWidth  The width of the original image
+     * @param sourceHeight The height of the original image
+     */
+    public void put(File file, BufferedImage image, int sourceWidth, int sourceHeight) {
+        String key = getKey(file);
+        BufferedImage preview = scaleToFit(image, maxWidth, maxHeight);
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null && existing.width >= preview.getWidth() && existing.height >= preview.getHeight()) return;
+        }
+
+        byte[] data;
+        try {
+            data = encode(preview);
+        } catch (IOException e) {
+            System.err.println("Error occurred while encoding preview of " + file.getName() + "!");
+            return;
+        }
+
+        synchronized (this) {
+            int recordLength = RECORD_HEADER_SIZE + data.length;
+            if (recordLength > capacity) return;
+            if (writePosition + recordLength > capacity) writePosition = 0;
+
+            // Drop the previews that are going to be overwritten
+            Map.Entry<Long, String> previous = entryOffsets.lowerEntry(writePosition);
+            if (previous != null && entries.get(previous.getValue()).getEnd() > writePosition) removeEntry(previous.getValue());
+            while (true) {
+                Map.Entry<Long, String> overlapping = entryOffsets.ceilingEntry(writePosition);
+                if (overlapping == null || overlapping.getKey() >= writePosition + recordLength) break;
+                removeEntry(overlapping.getValue());
+            }
+            removeEntry(key);
+
+            long keyHash = hashKey(key);
+            ByteBuffer record = ByteBuffer.allocate(recordLength);
+            record.putInt(RECORD_MAGIC).putLong(keyHash).putInt(data.length).put(data);
+            record.flip();
+            try {
+                long position = writePosition;
+                while (record.hasRemaining()) position += channel.write(record, position);
+            } catch (IOException e) {
+                System.err.println("Error occurred while writing preview of " + file.getName() + "!");
+                return;
+            }
+
+            Entry entry = new Entry(writePosition, data.length, keyHash, preview.getWidth(), preview.getHeight(), sourceWidth, sourceHeight);
+            entries.put(key, entry);
+            entryOffsets.put(entry.offset, key);
+            writePosition = entry.getEnd();
+
+            if (++unsavedCount >= INDEX_SAVE_INTERVAL) saveIndex();
+        }
+    }
+
+    /**
+     * Writes the index of the stored previews to disk
+     */
+    public synchronized void saveIndex() {
+        if (unsavedCount == 0) return;
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(writePosition);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.offset);
+                out.writeInt(entry.length);
+                out.writeLong(entry.keyHash);
+                out.writeInt(entry.width);
+                out.writeInt(entry.height);
+                out.writeInt(entry.sourceWidth);
+                out.writeInt(entry.sourceHeight);
+            }
+        } catch (IOException e) {
+            System.err.println("Error occurred while saving the preview index!");
+            return;
+        }
+
+        try {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            unsavedCount = 0;
+        } catch (IOException e) {
+            System.err.println("Error occurred while saving the preview index!");
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        if (!indexFile.exists()) return;
+        long packSize = channel.size();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                System.err.println("Preview index has an unknown format, ignoring it.");
+                return;
+            }
+            writePosition = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                Entry entry = new Entry(in.readLong(), in.readInt(), in.readLong(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                if (entry.getEnd() > packSize || entry.getEnd() > capacity) continue;
+                entries.put(key, entry);
+                entryOffsets.put(entry.offset, key);
+            }
+        } catch (EOFException e) {
+            System.err.println("Preview index is truncated, using the previews read so far.");
+        }
+        if (writePosition > capacity) writePosition = 0;
+    }
+
+    private ByteBuffer readRecord(Entry entry) {
+        try {
+            if (mappedPack == null || mappedPack.capacity() < entry.getEnd()) {
+                // The mapping grows in large steps, so filling the pack doesn't remap it for every new preview
+                long mappingSize = Math.min(capacity, (entry.getEnd() / MAPPING_STEP + 1) * MAPPING_STEP);
+                mappedPack = channel.map(FileChannel.MapMode.READ_ONLY, 0, mappingSize);
+            }
+            if (mappedPack.capacity() < entry.getEnd()) return null;
+        } catch (IOException e) {
+            System.err.println("Error occurred while mapping the preview pack!");
+            return null;
+        }
+
+        ByteBuffer record = mappedPack.duplicate();
+        record.position((int) entry.offset);
+        if (record.getInt() != RECORD_MAGIC || record.getLong() != entry.keyHash || record.getInt() != entry.length) return null;
+        record.limit(record.position() + entry.length);
+        return record.slice();
+    }
+
+    private void removeEntry(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) entryOffsets.remove(entry.offset);
+    }
+
+    private static String getKey(File file) {
+        return file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified();
+    }
+
+    private static long hashKey(String key) {
+        // 64 bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static BufferedImage scaleToFit(BufferedImage image, int maxWidth, int maxHeight) {
+        float scale = Math.min(1f, Math.min((float) maxWidth / image.getWidth(), (float) maxHeight / image.getHeight()));
+        int width = Math.max(1, Math.round(image.getWidth() * scale));
+        int height = Math.max(1, Math.round(image.getHeight() * scale));
+        boolean alpha = image.getColorModel().hasAlpha();
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        if (scale == 1f && image.getType() == type) return image;
+
+        BufferedImage scaled = new BufferedImage(width, height, type);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (image.getColorModel().hasAlpha()) {
+            ImageIO.write(image, "png", out);
+            return out.toByteArray();
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,50 @@
+package net.gabor6505.imageorganizer.cache;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free array of atomic slots that grows on demand, for when the number of slots is not known up front
+ * <br><br>
+ * The slots are allocated in fixed size chunks, which are created with a compare-and-set the first time one of their slots is written,
+ * so existing slots never move and can be updated concurrently while the array grows
+ *
+ * @param <T> The type of the values in the slots
+ */
+public class SlotArray<T> {
+
+    private final static int CHUNK_BITS = 10;
+    private final static int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private final static int MAX_CHUNKS = 1 << 16;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<T>> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+    /**
+     * @param index The index of the slot
+     * @return The value of the slot, or null if it's empty
+     */
+    public T get(int index) {
+        AtomicReferenceArray<T> chunk = chunks.get(index >>> CHUNK_BITS);
+        return chunk != null ? chunk.get(index & (CHUNK_SIZE - 1)) : null;
+    }
+
+    /**
+     * Sets the value of a slot if it currently holds the expected value
+     *
+     * @param index The index of the slot
+     * @param expect The expected value
+     * @param update The new value
+     * @return True if the value was set
+     */
+    public boolean compareAndSet(int index, T expect, T update) {
+        return getChunk(index).compareAndSet(index & (CHUNK_SIZE - 1), expect, update);
+    }
+
+    private AtomicReferenceArray<T> getChunk(int index) {
+        int chunkIndex = index >>> CHUNK_BITS;
+        AtomicReferenceArray<T> chunk = chunks.get(chunkIndex);
+        if (chunk != null) return chunk;
+
+        chunks.compareAndSet(chunkIndex, null, new AtomicReferenceArray<>(CHUNK_SIZE));
+        return chunks.get(chunkIndex);
+    }
+}
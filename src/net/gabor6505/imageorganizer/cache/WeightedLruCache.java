@@ -0,0 +1,129 @@
+package net.gabor6505.imageorganizer.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe least recently used cache that is bounded by the total weight of its values instead of their count
+ * <br><br>
+ * When a new value would push the total weight over the budget, the least recently accessed values are evicted until it fits
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the cached values
+ */
+public class WeightedLruCache<K, V> {
+
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<K, Long> weights = new HashMap<>();
+    private final ToLongFunction<V> weigher;
+
+    private long budget;
+    private long weight = 0;
+    private long evictionCount = 0;
+
+    /**
+     * @param budget  The maximum total weight of the cached values
+     * @param weigher The function that calculates the weight of a single value
+     */
+    public WeightedLruCache(long budget, ToLongFunction<V> weigher) {
+        this.budget = budget;
+        this.weigher = weigher;
+    }
+
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    public synchronized boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Puts a value into the cache, evicting the least recently used values if the budget would be exceeded
+     *
+     * @param key   The key of the value
+     * @param value The value to cache
+     * @return True if the value got cached, or false if it is null or heavier than the whole budget
+     */
+    public synchronized boolean put(K key, V value) {
+        remove(key);
+        if (value == null) return false;
+
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > budget) return false;
+
+        map.put(key, value);
+        weights.put(key, valueWeight);
+        weight += valueWeight;
+        trimToBudget();
+        return true;
+    }
+
+    public synchronized V remove(K key) {
+        V value = map.remove(key);
+        Long valueWeight = weights.remove(key);
+        if (valueWeight != null) weight -= valueWeight;
+        return value;
+    }
+
+    /**
+     * Removes every value whose key matches the specified filter
+     *
+     * @param filter The filter that decides which keys should be removed
+     * @return The number of removed values
+     */
+    public synchronized int removeKeys(Predicate<K> filter) {
+        List<K> keys = new ArrayList<>();
+        for (K key : map.keySet()) {
+            if (filter.test(key)) keys.add(key);
+        }
+        for (K key : keys) remove(key);
+        return keys.size();
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        weights.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        trimToBudget();
+    }
+
+    /**
+     * @return The number of values that were evicted to stay within the budget since this cache was created
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    private void trimToBudget() {
+        Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+        while (weight > budget && iterator.hasNext()) {
+            K key = iterator.next().getKey();
+            iterator.remove();
+            weight -= weights.remove(key);
+            evictionCount++;
+        }
+    }
+}
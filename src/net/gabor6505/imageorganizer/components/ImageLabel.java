@@ -1,47 +1,558 @@
 package net.gabor6505.imageorganizer.components;
 
+import net.gabor6505.imageorganizer.PreferenceManager;
+import net.gabor6505.imageorganizer.cache.WeightedLruCache;
+import net.gabor6505.imageorganizer.image.ImageScaler;
+import net.gabor6505.imageorganizer.image.TiledImage;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ImageLabel extends JLabel implements ComponentListener {
 
+    private final static ExecutorService SCALER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ImageLabelScaler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The delay after the last resize event before the image is scaled with full quality,
+     * also used by the owner of the label to request the image again at the new size
+     */
+    public final static int RESIZE_DELAY = 150;
+    private final static long SCALED_CACHE_BUDGET = 64L * 1024 * 1024;
+    private final static double ZOOM_STEP = 1.25;
+    private final static double MAX_ZOOM = 8;
+
+    private final WeightedLruCache<ScaledKey, BufferedImage> scaledCache =
+            new WeightedLruCache<>(SCALED_CACHE_BUDGET, image -> (long) image.getWidth() * image.getHeight() * 4);
+    private final Timer resizeTimer;
+    private final Timer idleTimer;
+    private final int interactiveStepInterval = PreferenceManager.getInteractiveStepInterval();
+
     private BufferedImage rawImage;
+    private boolean preview = false;
+
+    /**
+     * The image that is painted, already scaled to fit the label
+     * Opaque frames are copied into a volatile image once, which is then blitted by the graphics hardware on every repaint
+     */
+    private BufferedImage frame = null;
+    private VolatileImage surface = null;
+    private boolean surfaceDirty = false;
+
+    /**
+     * While images are set in quick succession, they are drawn straight from the unscaled image with a single bilinear pass (the interactive tier),
+     * and only scaled with full quality once no new image was set for a while (the idle tier)
+     */
+    private BufferedImage draftImage = null;
+    private long lastImageTime = 0;
+
+    /**
+     * Incremented for every scale request, so that results of outdated requests can be discarded
+     */
+    private volatile int scaleRequest = 0;
+
+    /**
+     * While zoomed in, the visible region of the image file is decoded in tiles
+     * The zoom is the number of screen pixels per source pixel, and the view is the source position at the top left corner of the label
+     */
+    private File imageFile = null;
+    private int imageWidth = 0;
+    private int imageHeight = 0;
+    private boolean sizeRequested = false;
+    private TiledImage tiledImage = null;
+    private double zoom = 1;
+    private double viewX = 0;
+    private double viewY = 0;
+    private Point dragPoint = null;
 
     public ImageLabel() {
+        resizeTimer = new Timer(RESIZE_DELAY, e -> updateFrame());
+        resizeTimer.setRepeats(false);
+        idleTimer = new Timer(PreferenceManager.getIdleRenderDelay(), e -> updateFrame());
+        idleTimer.setRepeats(false);
         addComponentListener(this);
+
+        MouseAdapter zoomListener = new MouseAdapter() {
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                zoom(Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()), e.getPoint());
+            }
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                if (tiledImage != null && SwingUtilities.isLeftMouseButton(e)) dragPoint = e.getPoint();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (tiledImage == null || dragPoint == null) return;
+                viewX -= (e.getX() - dragPoint.x) / zoom;
+                viewY -= (e.getY() - dragPoint.y) / zoom;
+                dragPoint = e.getPoint();
+                clampView();
+                repaint();
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                dragPoint = null;
+            }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) exitZoom();
+            }
+        };
+        addMouseListener(zoomListener);
+        addMouseMotionListener(zoomListener);
+        addMouseWheelListener(zoomListener);
+    }
+
+    /**
+     * Sets the file of the current image, which is decoded in tiles when zooming into the image
+     *
+     * @param imageFile The image file, or null if zooming shouldn't be possible
+     */
+    public void setImageFile(File imageFile) {
+        setImageFile(imageFile, 0, 0);
+    }
+
+    /**
+     * Sets the file of the current image along with the dimensions of the image stored in it, so zooming doesn't have to read them from the file
+     *
+     * @param imageFile The image file, or null if zooming shouldn't be possible
+     * @param width The width of the image in the file, or 0 if it's not known
+     * @param height The height of the image in the file, or 0 if it's not known
+     */
+    public void setImageFile(File imageFile, int width, int height) {
+        boolean sameFile = imageFile == null ? this.imageFile == null : imageFile.equals(this.imageFile);
+        if (!sameFile || width > 0) {
+            imageWidth = width;
+            imageHeight = height;
+        }
+        if (sameFile) return;
+        this.imageFile = imageFile;
+        sizeRequested = false;
+
+        // The file of the zoomed image got moved, so its tiles have to be loaded from the new location
+        if (tiledImage != null) {
+            if (imageFile == null) {
+                exitZoom();
+                return;
+            }
+            tiledImage.dispose();
+            tiledImage = new TiledImage(imageFile, tiledImage.getWidth(), tiledImage.getHeight(), this::repaint);
+        }
     }
 
     public void setImage(BufferedImage rawImage) {
+        setImage(rawImage, null);
+    }
+
+    /**
+     * Sets the image along with a frame that was already rendered from it for the current size of the label,
+     * in which case the frame is shown right away, without scaling the image again
+     *
+     * @param rawImage The image
+     * @param frame The pre-rendered frame of the image, or null if it doesn't have one
+     */
+    public void setImage(BufferedImage rawImage, BufferedImage frame) {
+        if (rawImage != null && rawImage == this.rawImage && !preview) return;
+        long time = System.currentTimeMillis();
+        boolean interactive = time - lastImageTime < interactiveStepInterval;
+        lastImageTime = time;
+        exitZoom();
         this.rawImage = rawImage;
-        updateIcon();
+        preview = false;
+        if (rawImage == null) {
+            scaleRequest++;
+            setFrame(null);
+            setMessage("Failed to load image");
+            return;
+        }
+        setMessage(null);
+        if (frame != null) {
+            Dimension size = getScaledSize(rawImage);
+            if (frame.getWidth() == size.width && frame.getHeight() == size.height) scaledCache.put(new ScaledKey(rawImage, size), frame);
+        }
+        updateFrame(interactive);
+    }
+
+    /**
+     * @return True if the current image is drawn with the fast render quality, because the user is navigating quickly
+     */
+    public boolean isInteractiveQuality() {
+        return draftImage != null;
+    }
+
+    /**
+     * Sets a low resolution preview of the image (like an embedded thumbnail), which is scaled up to fill the label
+     *
+     * @param previewImage The preview image
+     */
+    public void setPreviewImage(BufferedImage previewImage) {
+        exitZoom();
+        rawImage = previewImage;
+        preview = true;
+        setMessage(null);
+        updateFrame();
+    }
+
+    /**
+     * Replaces the current image with a loading text, until the next image is set
+     */
+    public void showPlaceholder() {
+        exitZoom();
+        rawImage = null;
+        preview = false;
+        scaleRequest++;
+        setFrame(null);
+        setMessage("Loading...");
+    }
+
+    /**
+     * Sets the text shown instead of the image, only if it changed,
+     * because setting the text of a label relayouts it whenever the old or the new text is null, even if they're both null
+     *
+     * @param message The text to show, or null if the image is shown
+     */
+    private void setMessage(String message) {
+        if (Objects.equals(getText(), message)) return;
+        setText(message);
+    }
+
+    /**
+     * Scales the current image to fit the label on a background thread, and shows it once it's ready
+     * The previous frame stays visible until then, and is replaced right away if the image doesn't need to be scaled,
+     * or if it was already scaled to the same size recently
+     */
+    private void updateFrame() {
+        updateFrame(false);
+    }
+
+    /**
+     * @param interactive True if the image should only be drawn with the fast render quality for now, if it's not scaled already
+     */
+    private void updateFrame(boolean interactive) {
+        resizeTimer.stop();
+        idleTimer.stop();
+        if (rawImage == null || getWidth() <= 0 || getHeight() <= 0) return;
+
+        BufferedImage image = rawImage;
+        Dimension size = getScaledSize(image);
+        int request = ++scaleRequest;
+        if (size.width == image.getWidth() && size.height == image.getHeight()) {
+            setFrame(image);
+            return;
+        }
+
+        ScaledKey key = new ScaledKey(image, size);
+        BufferedImage cached = scaledCache.get(key);
+        if (cached != null) {
+            setFrame(cached);
+            return;
+        }
+
+        if (interactive) {
+            setDraftImage(image);
+            idleTimer.restart();
+            return;
+        }
+
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        SCALER.execute(() -> {
+            // Skip requests that got outdated while waiting in the queue
+            if (request != scaleRequest) return;
+            BufferedImage scaled = ImageScaler.scale(image, size.width, size.height, gc);
+            scaledCache.put(key, scaled);
+            SwingUtilities.invokeLater(() -> {
+                if (request == scaleRequest) setFrame(scaled);
+            });
+        });
+    }
+
+    /**
+     * While the label is being resized, the currently visible frame is stretched to the new size (which is cheap, as it's already screen sized),
+     * and the image is only scaled with full quality once no resize event arrived for a while
+     */
+    private void showInterimFrame() {
+        if (rawImage == null || getWidth() <= 0 || getHeight() <= 0) return;
+
+        Dimension size = getScaledSize(rawImage);
+        BufferedImage cached = scaledCache.get(new ScaledKey(rawImage, size));
+        if (cached != null) {
+            scaleRequest++;
+            setFrame(cached);
+            return;
+        }
+
+        BufferedImage current = frame;
+        if (current == null) return;
+
+        BufferedImage interim = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = interim.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(current, 0, 0, size.width, size.height, null);
+        g.dispose();
+        scaleRequest++;
+        setFrame(interim);
+    }
+
+    /**
+     * Replaces the painted frame without allocating a new icon or triggering a relayout of the label
+     *
+     * @param frame The new frame, or null to paint nothing but the text of the label
+     */
+    private void setFrame(BufferedImage frame) {
+        if (frame == this.frame && draftImage == null) return;
+        draftImage = null;
+        this.frame = frame;
+        surfaceDirty = true;
+        repaint();
+    }
+
+    /**
+     * Zooms the image around the specified point, starting the zoom mode if the image is not zoomed yet
+     * The zoom mode is left once the image is zoomed out to fit the label again
+     *
+     * @param factor The factor the current zoom is multiplied by
+     * @param anchor The point of the label that should stay over the same part of the image
+     */
+    private void zoom(double factor, Point anchor) {
+        if (tiledImage == null) {
+            if (factor <= 1 || rawImage == null || preview || imageFile == null) return;
+            if (imageWidth <= 0 || imageHeight <= 0) {
+                // Reading the size from the file could block the Event Dispatch Thread on a slow disk, so the zoom starts once it's read
+                if (sizeRequested) return;
+                sizeRequested = true;
+                File file = imageFile;
+                TiledImage.readSize(file, size -> {
+                    if (size == null || !file.equals(imageFile)) return;
+                    imageWidth = size.width;
+                    imageHeight = size.height;
+                    zoom(factor, anchor);
+                });
+                return;
+            }
+
+            tiledImage = new TiledImage(imageFile, imageWidth, imageHeight, this::repaint);
+            zoom = getFitZoom();
+            viewX = (imageWidth - getWidth() / zoom) / 2;
+            viewY = (imageHeight - getHeight() / zoom) / 2;
+        }
+
+        double newZoom = Math.min(MAX_ZOOM, zoom * factor);
+        if (newZoom <= getFitZoom()) {
+            exitZoom();
+            return;
+        }
+
+        viewX += anchor.x / zoom - anchor.x / newZoom;
+        viewY += anchor.y / zoom - anchor.y / newZoom;
+        zoom = newZoom;
+        clampView();
+        repaint();
+    }
+
+    private void exitZoom() {
+        if (tiledImage == null) return;
+        tiledImage.dispose();
+        tiledImage = null;
+        dragPoint = null;
+        repaint();
+    }
+
+    /**
+     * @return The zoom at which the whole image fits the label, which is what the frame shows
+     */
+    private double getFitZoom() {
+        return Math.min(1, Math.min((double) getWidth() / tiledImage.getWidth(), (double) getHeight() / tiledImage.getHeight()));
+    }
+
+    /**
+     * Keeps the image inside the label, centering it along the axes where it's smaller than the label
+     */
+    private void clampView() {
+        double visibleWidth = getWidth() / zoom;
+        double visibleHeight = getHeight() / zoom;
+        int width = tiledImage.getWidth();
+        int height = tiledImage.getHeight();
+        viewX = visibleWidth >= width ? (width - visibleWidth) / 2 : Math.max(0, Math.min(width - visibleWidth, viewX));
+        viewY = visibleHeight >= height ? (height - visibleHeight) / 2 : Math.max(0, Math.min(height - visibleHeight, viewY));
+    }
+
+    /**
+     * Paints the zoomed image from the tiles covering the visible region
+     * Until a tile is loaded, the image shown before zooming is stretched over its place
+     */
+    private void paintZoomed(Graphics2D g, TiledImage tiledImage) {
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        int width = tiledImage.getWidth();
+        int height = tiledImage.getHeight();
+        if (rawImage != null) {
+            g.drawImage(rawImage, toScreenX(0), toScreenY(0), toScreenX(width) - toScreenX(0), toScreenY(height) - toScreenY(0), null);
+        }
+
+        int level = TiledImage.getLevel(zoom);
+        int tileSize = TiledImage.TILE_SIZE << level;
+        int firstColumn = Math.max(0, (int) (viewX / tileSize));
+        int firstRow = Math.max(0, (int) (viewY / tileSize));
+        int lastColumn = Math.min((width - 1) / tileSize, (int) ((viewX + getWidth() / zoom) / tileSize));
+        int lastRow = Math.min((height - 1) / tileSize, (int) ((viewY + getHeight() / zoom) / tileSize));
+        tiledImage.setVisibleTiles(level, new Rectangle(firstColumn, firstRow, lastColumn - firstColumn + 1, lastRow - firstRow + 1));
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                BufferedImage tile = tiledImage.getTile(level, column, row);
+                if (tile == null) continue;
+
+                Rectangle region = tiledImage.getTileRegion(level, column, row);
+                int x = toScreenX(region.x);
+                int y = toScreenY(region.y);
+                g.drawImage(tile, x, y, toScreenX(region.x + region.width) - x, toScreenY(region.y + region.height) - y, null);
+            }
+        }
+    }
+
+    private int toScreenX(double sourceX) {
+        return (int) Math.round((sourceX - viewX) * zoom);
+    }
+
+    private int toScreenY(double sourceY) {
+        return (int) Math.round((sourceY - viewY) * zoom);
+    }
+
+    /**
+     * Draws the unscaled image directly while the user is navigating quickly, until the next frame is set
+     *
+     * @param draftImage The unscaled image
+     */
+    private void setDraftImage(BufferedImage draftImage) {
+        this.draftImage = draftImage;
+        frame = null;
+        repaint();
+    }
+
+    private void paintDraft(Graphics2D g, BufferedImage draftImage) {
+        Dimension size = getScaledSize(draftImage);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(draftImage, (getWidth() - size.width) / 2, (getHeight() - size.height) / 2, size.width, size.height, null);
+
+        // Show that the image is not drawn with full quality yet
+        String text = "Fast preview";
+        FontMetrics metrics = g.getFontMetrics();
+        int x = getWidth() - metrics.stringWidth(text) - 8;
+        int y = getHeight() - metrics.getDescent() - 6;
+        g.setColor(new Color(0, 0, 0, 128));
+        g.fillRect(x - 4, y - metrics.getAscent() - 2, metrics.stringWidth(text) + 8, metrics.getHeight() + 4);
+        g.setColor(Color.WHITE);
+        g.drawString(text, x, y);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+
+        TiledImage tiledImage = this.tiledImage;
+        if (tiledImage != null) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            try {
+                paintZoomed(g2, tiledImage);
+            } finally {
+                g2.dispose();
+            }
+            return;
+        }
+
+        BufferedImage draftImage = this.draftImage;
+        if (draftImage != null) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            try {
+                paintDraft(g2, draftImage);
+            } finally {
+                g2.dispose();
+            }
+            return;
+        }
+
+        BufferedImage frame = this.frame;
+        if (frame == null) return;
+        int x = (getWidth() - frame.getWidth()) / 2;
+        int y = (getHeight() - frame.getHeight()) / 2;
+
+        // Translucent frames are drawn directly, as Java2D accelerates them as managed images anyway
+        if (frame.getTransparency() != Transparency.OPAQUE) {
+            g.drawImage(frame, x, y, null);
+            return;
+        }
+
+        do {
+            if (!validateSurface(frame)) {
+                g.drawImage(frame, x, y, null);
+                return;
+            }
+            g.drawImage(surface, x, y, null);
+        } while (surface.contentsLost());
     }
 
-    private void updateIcon() {
-        if (rawImage == null) return;
+    /**
+     * Makes sure the volatile surface holds the current frame, recreating or restoring it if needed
+     *
+     * @param frame The current frame
+     * @return False if no volatile surface could be created, in which case the frame has to be drawn directly
+     */
+    private boolean validateSurface(BufferedImage frame) {
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (gc == null) return false;
 
-        int w = rawImage.getWidth();
-        int h = rawImage.getHeight();
-        float scaleW = (float) getWidth() / w;
-        float scaleH = (float) getHeight() / h;
-        if (scaleW > 1f) scaleW = 1f;
-        if (scaleH > 1f) scaleH = 1f;
+        int status = surface != null ? surface.validate(gc) : VolatileImage.IMAGE_INCOMPATIBLE;
+        if (status == VolatileImage.IMAGE_INCOMPATIBLE || surface.getWidth() != frame.getWidth() || surface.getHeight() != frame.getHeight()) {
+            if (surface != null) surface.flush();
+            surface = gc.createCompatibleVolatileImage(frame.getWidth(), frame.getHeight(), Transparency.OPAQUE);
+            if (surface == null) return false;
+            surface.validate(gc);
+            surfaceDirty = true;
+        } else if (status == VolatileImage.IMAGE_RESTORED) {
+            surfaceDirty = true;
+        }
 
-        if (scaleW > scaleH) {
-            w = -1;
-            h = (int) (h * scaleH);
-        } else {
-            w = (int) (w * scaleW);
-            h = -1;
+        if (surfaceDirty) {
+            Graphics2D g = surface.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(frame, 0, 0, null);
+            g.dispose();
+            surfaceDirty = false;
         }
-        setIcon(new ImageIcon(rawImage.getScaledInstance(w, h, Image.SCALE_SMOOTH)));
+        return true;
+    }
+
+    private Dimension getScaledSize(BufferedImage image) {
+        return ImageScaler.getFittedSize(image.getWidth(), image.getHeight(), getWidth(), getHeight(), preview);
     }
 
     @Override
     public void componentResized(ComponentEvent e) {
-        updateIcon();
+        if (tiledImage != null) {
+            clampView();
+            if (zoom <= getFitZoom()) exitZoom();
+        }
+        showInterimFrame();
+        resizeTimer.restart();
     }
 
     @Override
@@ -52,4 +563,37 @@ public class ImageLabel extends JLabel implements ComponentListener {
 
     @Override
     public void componentHidden(ComponentEvent e) { }
+
+    /**
+     * Identifies a scaled image by the image it was scaled from and its size
+     * The source image is only referenced weakly, so that the cache doesn't keep images alive that were already evicted from the image cache
+     */
+    private static class ScaledKey {
+
+        private final WeakReference<BufferedImage> image;
+        private final int hash;
+        private final int width;
+        private final int height;
+
+        ScaledKey(BufferedImage image, Dimension size) {
+            this.image = new WeakReference<>(image);
+            this.hash = System.identityHashCode(image);
+            this.width = size.width;
+            this.height = size.height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ScaledKey)) return false;
+            ScaledKey other = (ScaledKey) o;
+            BufferedImage source = image.get();
+            return source != null && source == other.image.get() && width == other.width && height == other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * hash + width) + height;
+        }
+    }
 }
@@ -0,0 +1,31 @@
+package net.gabor6505.imageorganizer.image;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * An image decoded by {@link ImageDecoder}, together with the size of the source image it was decoded from
+ */
+public class DecodedImage {
+
+    private final BufferedImage image;
+    private final int sourceWidth;
+    private final int sourceHeight;
+
+    public DecodedImage(BufferedImage image, int sourceWidth, int sourceHeight) {
+        this.image = image;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+}
@@ -0,0 +1,400 @@
+package net.gabor6505.imageorganizer.image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Reads data embedded in the headers of image files, without decoding the image itself
+ */
+public final class ExifReader {
+
+    private final static int MARKER_SOI = 0xD8;
+    private final static int MARKER_EOI = 0xD9;
+    private final static int MARKER_SOS = 0xDA;
+    private final static int MARKER_APP1 = 0xE1;
+    private final static int MARKER_SOF0 = 0xC0;
+    private final static int MARKER_SOF15 = 0xCF;
+    private final static int MARKER_DHT = 0xC4;
+    private final static int MARKER_JPG = 0xC8;
+    private final static int MARKER_DAC = 0xCC;
+
+    private final static int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private final static int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private final static int TAG_ORIENTATION = 0x0112;
+    private final static int TAG_DATE_TIME = 0x0132;
+    private final static int TAG_EXIF_IFD = 0x8769;
+    private final static int TAG_DATE_TIME_ORIGINAL = 0x9003;
+
+    private final static int TYPE_ASCII = 2;
+    private final static String DATE_FORMAT = "yyyy:MM:dd HH:mm:ss";
+
+    private final static byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private final static byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private final static int PNG_IHDR = 0x49484452;
+
+    private ExifReader() {
+
+    }
+
+    /**
+     * Reads the thumbnail embedded in the specified image file
+     * The EXIF thumbnail of JPEG files is read by parsing their APP1 segment directly,
+     * for other formats (and JFIF thumbnails) the thumbnail API of the image reader is used
+     *
+     * @param file The image file
+     * @return The embedded thumbnail, or null if the file doesn't have one
+     * @throws IOException If an error occurred while reading the file
+     */
+    public static BufferedImage readThumbnail(File file) throws IOException {
+        try {
+            TiffData exif = readExifData(file);
+            if (exif != null) {
+                BufferedImage thumbnail = readExifThumbnail(exif);
+                if (thumbnail != null) return thumbnail;
+            }
+        } catch (IOException e) {
+            // A malformed APP1 segment doesn't mean that the image reader can't find a thumbnail
+            System.err.println("Error occurred while reading the EXIF thumbnail of " + file.getName() + ", trying the image reader instead!");
+        }
+        return readReaderThumbnail(file);
+    }
+
+    /**
+     * Reads the date the image was taken at from the EXIF data of the specified image file
+     * The original date of the EXIF sub-IFD is used if it's present, otherwise the modification date of the main image
+     *
+     * @param file The image file
+     * @return The capture date in milliseconds since the epoch (interpreted in the local time zone), or -1 if the file doesn't have one
+     * @throws IOException If an error occurred while reading the file
+     */
+    public static long readCaptureDate(File file) throws IOException {
+        TiffData exif = readExifData(file);
+        if (exif == null) return -1;
+        return getCaptureDate(exif);
+    }
+
+    /**
+     * Reads the dimensions, the orientation and the capture date of an image from the header of its file in a single pass
+     * The headers of JPEG and PNG files are parsed directly, which only has to read the first few kilobytes of the file,
+     * other formats are read through the image reader, which is slower, but still doesn't decode the image
+     *
+     * @param file The image file
+     * @return The metadata of the image, or null if the file is not a supported image file
+     * @throws IOException If an error occurred while reading the file
+     */
+    public static ImageMetadata readMetadata(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int b0 = in.readUnsignedByte();
+            int b1 = in.readUnsignedByte();
+            if (b0 == 0xFF && b1 == MARKER_SOI) return readJpegMetadata(in);
+
+            byte[] signature = new byte[PNG_SIGNATURE.length];
+            signature[0] = (byte) b0;
+            signature[1] = (byte) b1;
+            in.readFully(signature, 2, signature.length - 2);
+            if (Arrays.equals(signature, PNG_SIGNATURE)) return readPngMetadata(in);
+        } catch (EOFException e) {
+            return null;
+        }
+
+        Dimension size = ImageDecoder.readSize(file);
+        return size != null ? new ImageMetadata(size.width, size.height, ImageMetadata.ORIENTATION_NORMAL, -1) : null;
+    }
+
+    /**
+     * Reads the metadata of a JPEG file, stopping at its frame header, which is preceded by the EXIF data
+     *
+     * @param in The stream of the file, positioned after the start of image marker
+     */
+    private static ImageMetadata readJpegMetadata(DataInputStream in) throws IOException {
+        TiffData exif = null;
+        while (true) {
+            if (in.readUnsignedByte() != 0xFF) return null;
+            int marker = in.readUnsignedByte();
+            while (marker == 0xFF) marker = in.readUnsignedByte();
+            if (marker == MARKER_SOS || marker == MARKER_EOI) return null;
+
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0) return null;
+            if (isStartOfFrame(marker) && length >= 5) {
+                in.readUnsignedByte();
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                return new ImageMetadata(width, height, readOrientation(exif), readCaptureDate(exif));
+            }
+
+            if (marker == MARKER_APP1 && exif == null && length > EXIF_HEADER.length) {
+                byte[] segment = new byte[length];
+                in.readFully(segment);
+                if (Arrays.equals(Arrays.copyOf(segment, EXIF_HEADER.length), EXIF_HEADER)) {
+                    try {
+                        exif = TiffData.parse(Arrays.copyOfRange(segment, EXIF_HEADER.length, segment.length));
+                    } catch (IOException e) {
+                        // The dimensions can still be read if the EXIF data is malformed
+                    }
+                }
+            } else {
+                skipFully(in, length);
+            }
+        }
+    }
+
+    /**
+     * Reads the metadata of a PNG file from its header chunk, PNG files don't store an orientation or a capture date
+     *
+     * @param in The stream of the file, positioned after the signature
+     */
+    private static ImageMetadata readPngMetadata(DataInputStream in) throws IOException {
+        in.readInt();
+        if (in.readInt() != PNG_IHDR) return null;
+        int width = in.readInt();
+        int height = in.readInt();
+        return new ImageMetadata(width, height, ImageMetadata.ORIENTATION_NORMAL, -1);
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= MARKER_SOF0 && marker <= MARKER_SOF15 && marker != MARKER_DHT && marker != MARKER_JPG && marker != MARKER_DAC;
+    }
+
+    private static int readOrientation(TiffData exif) {
+        if (exif == null) return ImageMetadata.ORIENTATION_NORMAL;
+        try {
+            long orientation = exif.getTagValue(exif.getFirstIfd(), TAG_ORIENTATION);
+            return orientation >= 1 && orientation <= 8 ? (int) orientation : ImageMetadata.ORIENTATION_NORMAL;
+        } catch (IOException e) {
+            return ImageMetadata.ORIENTATION_NORMAL;
+        }
+    }
+
+    private static long readCaptureDate(TiffData exif) {
+        if (exif == null) return -1;
+        try {
+            return getCaptureDate(exif);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static long getCaptureDate(TiffData exif) throws IOException {
+        int mainIfd = exif.getFirstIfd();
+        long exifIfd = exif.getTagValue(mainIfd, TAG_EXIF_IFD);
+        String date = exifIfd > 0 ? exif.getTagString((int) exifIfd, TAG_DATE_TIME_ORIGINAL) : null;
+        if (date == null) date = exif.getTagString(mainIfd, TAG_DATE_TIME);
+        return parseDate(date);
+    }
+
+    private static long parseDate(String date) {
+        if (date == null) return -1;
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+            format.setLenient(false);
+            return format.parse(date.trim()).getTime();
+        } catch (ParseException e) {
+            // Cameras without a set clock write blank or zeroed dates
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the EXIF data from the APP1 segment of a JPEG file, stopping at the first scan
+     *
+     * @param file The JPEG file
+     * @return The TIFF structure of the EXIF data, or null if the file is not a JPEG file or doesn't have EXIF data
+     * @throws IOException If an error occurred while reading the file
+     */
+    static TiffData readExifData(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != MARKER_SOI) return null;
+
+            while (true) {
+                if (in.readUnsignedByte() != 0xFF) return null;
+                int marker = in.readUnsignedByte();
+                while (marker == 0xFF) marker = in.readUnsignedByte();
+                if (marker == MARKER_SOS || marker == MARKER_EOI) return null;
+
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) return null;
+                if (marker == MARKER_APP1 && length > EXIF_HEADER.length) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    if (Arrays.equals(Arrays.copyOf(segment, EXIF_HEADER.length), EXIF_HEADER)) {
+                        return TiffData.parse(Arrays.copyOfRange(segment, EXIF_HEADER.length, segment.length));
+                    }
+                } else {
+                    skipFully(in, length);
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                in.readUnsignedByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    private static BufferedImage readExifThumbnail(TiffData exif) throws IOException {
+        // The thumbnail is described by the second IFD, which follows the one describing the main image
+        int thumbnailIfd = exif.getNextIfd(exif.getFirstIfd());
+        if (thumbnailIfd == 0) return null;
+
+        long offset = exif.getTagValue(thumbnailIfd, TAG_THUMBNAIL_OFFSET);
+        long length = exif.getTagValue(thumbnailIfd, TAG_THUMBNAIL_LENGTH);
+        if (offset <= 0 || length <= 0 || offset + length > exif.getLength()) return null;
+
+        return ImageIO.read(new ByteArrayInputStream(exif.getBytes(), (int) offset, (int) length));
+    }
+
+    private static BufferedImage readReaderThumbnail(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) return null;
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, false);
+                if (!reader.readerSupportsThumbnails() || !reader.hasThumbnails(0)) return null;
+                return reader.readThumbnail(0, 0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * A TIFF structure, as found in EXIF data
+     */
+    static class TiffData {
+
+        private final byte[] bytes;
+        private final boolean littleEndian;
+
+        private TiffData(byte[] bytes, boolean littleEndian) {
+            this.bytes = bytes;
+            this.littleEndian = littleEndian;
+        }
+
+        static TiffData parse(byte[] bytes) throws IOException {
+            if (bytes.length < 8) throw new IOException("Malformed EXIF data!");
+            boolean littleEndian;
+            if (bytes[0] == 'I' && bytes[1] == 'I') littleEndian = true;
+            else if (bytes[0] == 'M' && bytes[1] == 'M') littleEndian = false;
+            else throw new IOException("Malformed EXIF data!");
+
+            TiffData data = new TiffData(bytes, littleEndian);
+            if (data.readShort(2) != 42) throw new IOException("Malformed EXIF data!");
+            return data;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        int getLength() {
+            return bytes.length;
+        }
+
+        int getFirstIfd() throws IOException {
+            return (int) readInt(4);
+        }
+
+        int getNextIfd(int ifd) throws IOException {
+            int entryCount = readShort(ifd);
+            return (int) readInt(ifd + 2 + entryCount * 12);
+        }
+
+        /**
+         * Reads the value of a tag with a numeric type from the specified IFD
+         *
+         * @param ifd The offset of the IFD
+         * @param tag The tag to look for
+         * @return The value of the tag, or -1 if the IFD doesn't contain it
+         * @throws IOException If the IFD is malformed
+         */
+        long getTagValue(int ifd, int tag) throws IOException {
+            int entry = findEntry(ifd, tag);
+            if (entry == -1) return -1;
+
+            // Short values are stored in the first two bytes of the value field
+            int type = readShort(entry + 2);
+            if (type == 3) return readShort(entry + 8);
+            return readInt(entry + 8);
+        }
+
+        /**
+         * Reads the value of a tag with the ASCII type from the specified IFD
+         *
+         * @param ifd The offset of the IFD
+         * @param tag The tag to look for
+         * @return The value of the tag without its terminating null character, or null if the IFD doesn't contain it
+         * @throws IOException If the IFD is malformed
+         */
+        String getTagString(int ifd, int tag) throws IOException {
+            int entry = findEntry(ifd, tag);
+            if (entry == -1 || readShort(entry + 2) != TYPE_ASCII) return null;
+
+            // Strings that fit into four bytes are stored in the value field, longer ones at the offset stored there
+            long count = readInt(entry + 4);
+            if (count <= 0 || count > bytes.length) return null;
+            int offset = count <= 4 ? entry + 8 : (int) readInt(entry + 8);
+            int length = (int) count;
+            checkBounds(offset, length);
+            while (length > 0 && bytes[offset + length - 1] == 0) length--;
+            return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * @param ifd The offset of the IFD
+         * @param tag The tag to look for
+         * @return The offset of the entry of the tag, or -1 if the IFD doesn't contain it
+         * @throws IOException If the IFD is malformed
+         */
+        int findEntry(int ifd, int tag) throws IOException {
+            int entryCount = readShort(ifd);
+            for (int i = 0; i < entryCount; i++) {
+                int entry = ifd + 2 + i * 12;
+                if (readShort(entry) == tag) return entry;
+            }
+            return -1;
+        }
+
+        int readShort(int offset) throws IOException {
+            checkBounds(offset, 2);
+            int b0 = bytes[offset] & 0xFF;
+            int b1 = bytes[offset + 1] & 0xFF;
+            return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+
+        long readInt(int offset) throws IOException {
+            checkBounds(offset, 4);
+            long value = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = bytes[offset + (littleEndian ? 3 - i : i)] & 0xFF;
+                value = (value << 8) | b;
+            }
+            return value;
+        }
+
+        private void checkBounds(int offset, int length) throws IOException {
+            if (offset < 0 || offset + length > bytes.length) throw new IOException("Malformed EXIF data!");
+        }
+    }
+}
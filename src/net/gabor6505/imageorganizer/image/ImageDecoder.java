@@ -0,0 +1,159 @@
+package net.gabor6505.imageorganizer.image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+public final class ImageDecoder {
+
+    private ImageDecoder() {
+
+    }
+
+    /**
+     * Decodes the specified image file, using the largest subsampling factor
+     * that still keeps the image at least as big as it would be displayed inside the target size
+     *
+     * @param file         The image file to decode
+     * @param targetWidth  The width of the area the image will be fitted into, or 0 to decode at full resolution
+     * @param targetHeight The height of the area the image will be fitted into, or 0 to decode at full resolution
+     * @return The decoded image, or null if there is no reader that can decode the file
+     * @throws IOException If an error occurred while reading the file
+     */
+    public static DecodedImage decode(File file, int targetWidth, int targetHeight) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) throw new IOException("Can't create an input stream for " + file.getPath());
+            return decode(input, targetWidth, targetHeight);
+        }
+    }
+
+    /**
+     * Decodes an image from the encoded bytes of an image file, using the largest subsampling factor
+     * that still keeps the image at least as big as it would be displayed inside the target size
+     *
+     * @param bytes        The contents of the image file
+     * @param targetWidth  The width of the area the image will be fitted into, or 0 to decode at full resolution
+     * @param targetHeight The height of the area the image will be fitted into, or 0 to decode at full resolution
+     * @return The decoded image, or null if there is no reader that can decode the bytes
+     * @throws IOException If the bytes can't be decoded
+     */
+    public static DecodedImage decode(byte[] bytes, int targetWidth, int targetHeight) throws IOException {
+        // The stream is read from memory directly, instead of letting ImageIO cache it in a temporary file
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes))) {
+            return decode(input, targetWidth, targetHeight);
+        }
+    }
+
+    private static DecodedImage decode(ImageInputStream input, int targetWidth, int targetHeight) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) return null;
+
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            int subsampling = getSubsampling(width, height, targetWidth, targetHeight);
+            if (subsampling > 1) param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+            return new DecodedImage(reader.read(0, param), width, height);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Reads the size of an image from the header of its file, without decoding it
+     *
+     * @param file The image file
+     * @return The size of the image, or null if there is no reader that can decode the file
+     * @throws IOException If an error occurred while reading the file
+     */
+    public static Dimension readSize(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) throw new IOException("Can't create an input stream for " + file.getPath());
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes a region of the specified image file, so that only the pixels of the region have to be kept in memory
+     *
+     * @param file        The image file to decode
+     * @param region      The region of the source image to decode
+     * @param subsampling The subsampling factor to decode the region with
+     * @return The decoded region, or null if there is no reader that can decode the file
+     * @throws IOException If an error occurred while reading the file
+     */
+    public static BufferedImage decodeRegion(File file, Rectangle region, int subsampling) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) throw new IOException("Can't create an input stream for " + file.getPath());
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                if (subsampling > 1) param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Calculates the largest subsampling factor at which an image is still
+     * at least as big as its scaled down version that fits inside the target size
+     *
+     * @param width        The width of the source image
+     * @param height       The height of the source image
+     * @param targetWidth  The width of the area the image will be fitted into, or 0 for full resolution
+     * @param targetHeight The height of the area the image will be fitted into, or 0 for full resolution
+     * @return The subsampling factor, which is 1 if the image should be decoded at full resolution
+     */
+    public static int getSubsampling(int width, int height, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) return 1;
+        return Math.max(1, Math.min(width / targetWidth, height / targetHeight));
+    }
+
+    /**
+     * Checks whether an image is big enough to be displayed without upscaling, when its source is fitted into the target size
+     *
+     * @param width        The width of the image
+     * @param height       The height of the image
+     * @param sourceWidth  The width of the source image
+     * @param sourceHeight The height of the source image
+     * @param targetWidth  The width of the area the image will be fitted into, or 0 for full resolution
+     * @param targetHeight The height of the area the image will be fitted into, or 0 for full resolution
+     * @return True if the image is at least as big as the fitted source image
+     */
+    public static boolean isLargeEnough(int width, int height, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) return width >= sourceWidth && height >= sourceHeight;
+        float scale = Math.min(1f, Math.min((float) targetWidth / sourceWidth, (float) targetHeight / sourceHeight));
+        return width >= (int) (sourceWidth * scale) && height >= (int) (sourceHeight * scale);
+    }
+}
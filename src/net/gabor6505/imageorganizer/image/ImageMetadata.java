@@ -0,0 +1,59 @@
+package net.gabor6505.imageorganizer.image;
+
+/**
+ * The metadata of an image read from the header of its file by {@link ExifReader#readMetadata(java.io.File)}
+ */
+public class ImageMetadata {
+
+    /**
+     * The EXIF orientation of images that are stored the way they should be displayed
+     */
+    public final static int ORIENTATION_NORMAL = 1;
+
+    private final int width;
+    private final int height;
+    private final int orientation;
+    private final long captureTime;
+
+    public ImageMetadata(int width, int height, int orientation, long captureTime) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.captureTime = captureTime;
+    }
+
+    /**
+     * @return The width of the image as it's stored in the file, or 0 if it couldn't be read
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The height of the image as it's stored in the file, or 0 if it couldn't be read
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The EXIF orientation of the image (1-8), {@link #ORIENTATION_NORMAL} if the file doesn't specify one
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return True if the image has to be rotated by 90 degrees to be displayed, so its displayed width and height are swapped
+     */
+    public boolean isTransposed() {
+        return orientation >= 5 && orientation <= 8;
+    }
+
+    /**
+     * @return The capture time of the image in milliseconds since the epoch, or -1 if the file doesn't have one
+     */
+    public long getCaptureTime() {
+        return captureTime;
+    }
+}
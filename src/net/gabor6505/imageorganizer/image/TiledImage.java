@@ -0,0 +1,167 @@
+package net.gabor6505.imageorganizer.image;
+
+import net.gabor6505.imageorganizer.cache.WeightedLruCache;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * An image that is decoded in tiles on demand, so that zooming into huge images only needs the visible part of them in memory
+ * <br><br>
+ * Tiles are organized into levels, where level n is decoded with a subsampling factor of 2^n,
+ * and every tile is {@link #TILE_SIZE} pixels wide and high after subsampling (except the ones on the right and bottom edges)
+ */
+public class TiledImage {
+
+    public final static int TILE_SIZE = 512;
+    private final static long TILE_CACHE_BUDGET = 128 * 1024 * 1024;
+
+    private final static ExecutorService TILE_LOADER = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "TiledImageLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final Runnable tileListener;
+
+    private final WeightedLruCache<Long, BufferedImage> tiles =
+            new WeightedLruCache<>(TILE_CACHE_BUDGET, tile -> (long) tile.getWidth() * tile.getHeight() * 4);
+    private final Set<Long> pendingTiles = ConcurrentHashMap.newKeySet();
+
+    private volatile int visibleLevel = -1;
+    private volatile Rectangle visibleTiles = new Rectangle();
+    private volatile boolean disposed = false;
+
+    /**
+     * @param file The image file
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param tileListener Called on the Event Dispatch Thread whenever a tile finished loading
+     */
+    public TiledImage(File file, int width, int height, Runnable tileListener) {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.tileListener = tileListener;
+    }
+
+    /**
+     * Reads the size of an image file on the tile loader threads, for images whose size is not known yet
+     *
+     * @param file The image file
+     * @param callback Called on the Event Dispatch Thread with the size of the image, or null if it couldn't be read
+     */
+    public static void readSize(File file, Consumer<Dimension> callback) {
+        TILE_LOADER.execute(() -> {
+            Dimension size = null;
+            try {
+                size = ImageDecoder.readSize(file);
+            } catch (IOException e) {
+                System.err.println("Error occurred while reading the size of " + file.getName() + "!");
+            }
+            Dimension result = size;
+            SwingUtilities.invokeLater(() -> callback.accept(result));
+        });
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Calculates the level whose tiles should be drawn at the specified scale,
+     * which is the one with the largest subsampling factor that still doesn't have to be scaled up
+     *
+     * @param scale The number of screen pixels per source pixel
+     * @return The level of the tiles
+     */
+    public static int getLevel(double scale) {
+        int level = 0;
+        while (scale * (2 << level) <= 1) level++;
+        return level;
+    }
+
+    /**
+     * Sets the tiles that are currently visible, so that tiles which got scrolled out of view before being loaded are skipped
+     *
+     * @param level The level of the visible tiles
+     * @param tileRange The columns and rows of the visible tiles
+     */
+    public void setVisibleTiles(int level, Rectangle tileRange) {
+        visibleTiles = tileRange;
+        visibleLevel = level;
+    }
+
+    /**
+     * Returns a tile if it's already loaded, or starts loading it in the background otherwise
+     *
+     * @param level The level of the tile
+     * @param column The column of the tile
+     * @param row The row of the tile
+     * @return The tile, or null if it's not loaded yet
+     */
+    public BufferedImage getTile(int level, int column, int row) {
+        long key = getKey(level, column, row);
+        BufferedImage tile = tiles.get(key);
+        if (tile != null || disposed || !pendingTiles.add(key)) return tile;
+
+        TILE_LOADER.execute(() -> {
+            try {
+                if (disposed || level != visibleLevel || !visibleTiles.contains(column, row)) return;
+
+                BufferedImage loadedTile = ImageDecoder.decodeRegion(file, getTileRegion(level, column, row), 1 << level);
+                if (loadedTile == null || disposed) return;
+                tiles.put(key, loadedTile);
+                SwingUtilities.invokeLater(tileListener);
+            } catch (IOException e) {
+                System.err.println("Error occurred while decoding a tile of " + file.getName() + "!");
+            } finally {
+                pendingTiles.remove(key);
+            }
+        });
+        return null;
+    }
+
+    /**
+     * @param level The level of the tile
+     * @param column The column of the tile
+     * @param row The row of the tile
+     * @return The region of the source image covered by the tile
+     */
+    public Rectangle getTileRegion(int level, int column, int row) {
+        int size = TILE_SIZE << level;
+        Rectangle region = new Rectangle(column * size, row * size, size, size);
+        return region.intersection(new Rectangle(width, height));
+    }
+
+    /**
+     * Drops all loaded tiles and stops loading new ones
+     */
+    public void dispose() {
+        disposed = true;
+        tiles.clear();
+    }
+
+    private static long getKey(int level, int column, int row) {
+        return ((long) level << 48) | ((long) row << 24) | column;
+    }
+}